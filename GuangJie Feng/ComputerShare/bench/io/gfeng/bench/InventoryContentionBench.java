@@ -0,0 +1,110 @@
+package io.gfeng.bench;
+
+import static java.lang.System.out;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.gfeng.account.Account;
+import io.gfeng.account.AccountImpl;
+import io.gfeng.cash.CashMachine;
+import io.gfeng.cash.CashMachineImpl;
+import io.gfeng.cash.Disbursement;
+import io.gfeng.cash.LockFreeCashMachine;
+
+/**
+ * Contention benchmark of the fair lock {@link CashMachineImpl} against the compare-and-set
+ * {@link LockFreeCashMachine}. Each worker thread withdraws from its own {@link Account} so
+ * only the cash machine is contended, and puts the notes back every 64 withdrawals so the
+ * cash machine never runs out. A monitor thread keeps reading notes remain.
+ *
+ * <pre>
+ * java -cp bin:bin-bench io.gfeng.bench.InventoryContentionBench [threads] [seconds]
+ * </pre>
+ *
+ * @author gfeng
+ *
+ */
+public final class InventoryContentionBench {
+	private static final int[] NOTES = {5, 10, 20, 50};
+
+	public static void main(String[] args) throws Exception {
+		final int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+				: Runtime.getRuntime().availableProcessors();
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		out.println("threads  fair-lock ops/s  lock-free ops/s  fair-lock reads/s  lock-free reads/s");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			final long[] locked = run(new CashMachineImpl("bench-lock"), threads, seconds);
+			final long[] lockFree = run(new LockFreeCashMachine("bench-cas"), threads, seconds);
+
+			out.printf("%7d  %15d  %15d  %17d  %17d%n", threads,
+					locked[0] / seconds, lockFree[0] / seconds, locked[1] / seconds, lockFree[1] / seconds);
+		}
+	}
+
+	/**
+	 * Return number of withdrawals and reads in the period.
+	 */
+	private static long[] run(final CashMachine cashMachine, final int threads, final int seconds)
+			throws InterruptedException {
+		for (int note : NOTES) {
+			cashMachine.addNoteToCashMachine(note, 20000);
+		}
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final LongAdder withdrawals = new LongAdder();
+		final LongAdder reads = new LongAdder();
+		final CountDownLatch done = new CountDownLatch(threads + 1);
+
+		for (int t = 0; t < threads; t++) {
+			final Account account = new AccountImpl("bench-" + t);
+			account.deposit(1e12);
+
+			new Thread(() -> {
+				final int[] taken = new int[NOTES.length];
+				long count = 0;
+				try {
+					while (running.get()) {
+						final int withdrawal = 20 + 5 * ThreadLocalRandom.current().nextInt(47);
+						final Disbursement disbursement = cashMachine.disburse(account, withdrawal);
+						for (int i = 0; i < NOTES.length; i++) {
+							taken[i] += disbursement.getCount(NOTES[i]);
+						}
+
+						if ((++count & 63) == 0) {
+							for (int i = 0; i < NOTES.length; i++) {
+								cashMachine.addNoteToCashMachine(NOTES[i], taken[i]);
+								taken[i] = 0;
+							}
+						}
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				} finally {
+					withdrawals.add(count);
+					done.countDown();
+				}
+			}).start();
+		}
+
+		new Thread(() -> {
+			long count = 0;
+			while (running.get()) {
+				cashMachine.checkNoteRemain(NOTES[(int) (count & 3)]);
+				count++;
+			}
+			reads.add(count);
+			done.countDown();
+		}).start();
+
+		TimeUnit.SECONDS.sleep(seconds);
+		running.set(false);
+		done.await();
+
+		return new long[] {withdrawals.sum(), reads.sum()};
+	}
+}
@@ -0,0 +1,76 @@
+package io.gfeng.bench;
+
+import static java.lang.System.out;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.gfeng.account.Account;
+import io.gfeng.account.AccountImpl;
+import io.gfeng.journal.TransactionJournal;
+
+/**
+ * Benchmark of a {@link TransactionJournal} forcing the file for every operation against
+ * group commit. Each thread deposits to its own journaled {@link Account}, so only the journal
+ * is shared, and every deposit is durable before it returns.
+ *
+ * <pre>
+ * java -cp bin:bin-bench io.gfeng.bench.JournalBench [threads] [seconds]
+ * </pre>
+ *
+ * @author gfeng
+ *
+ */
+public final class JournalBench {
+	public static void main(String[] args) throws Exception {
+		final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		out.println("threads  per-operation fsync ops/s  group commit ops/s");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			final long single = run(false, threads, seconds);
+			final long group = run(true, threads, seconds);
+
+			out.printf("%7d  %25d  %18d%n", threads, single / seconds, group / seconds);
+		}
+	}
+
+	/**
+	 * Return number of deposits in the period.
+	 */
+	private static long run(final boolean groupCommit, final int threads, final int seconds)
+			throws Exception {
+		final Path file = Files.createTempFile("journal-bench", ".log");
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final LongAdder deposits = new LongAdder();
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		try (TransactionJournal journal = TransactionJournal.open(file, groupCommit)) {
+			for (int t = 0; t < threads; t++) {
+				final Account account = new AccountImpl("bench-" + t, journal);
+
+				new Thread(() -> {
+					long count = 0;
+					while (running.get()) {
+						account.deposit(1.25);
+						count++;
+					}
+					deposits.add(count);
+					done.countDown();
+				}).start();
+			}
+
+			TimeUnit.SECONDS.sleep(seconds);
+			running.set(false);
+			done.await();
+		} finally {
+			Files.delete(file);
+		}
+
+		return deposits.sum();
+	}
+}
@@ -0,0 +1,95 @@
+package io.gfeng.bench;
+
+import static java.lang.System.out;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.gfeng.cash.CashMachineImpl;
+import io.gfeng.server.LoopbackClient;
+import io.gfeng.server.Protocol;
+import io.gfeng.server.WithdrawServer;
+
+/**
+ * Benchmark of {@link WithdrawServer} over loopback. Each connection withdraws from its own
+ * accounts by a {@link LoopbackClient}, keeping a number of requests in flight, so the effect
+ * of pipelining is measured against one request at a time.
+ *
+ * <pre>
+ * java -cp bin:bin-bench io.gfeng.bench.ServerBench [connections] [seconds]
+ * </pre>
+ *
+ * @author gfeng
+ *
+ */
+public final class ServerBench {
+	private static final int[] DEPTHS = {1, 16, 256};
+
+	private static final int[] AMOUNTS = {20, 40, 60, 100, 150, 185, 250};
+
+	public static void main(String[] args) throws Exception {
+		final int maxConnections = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		final CashMachineImpl cashMachine = new CashMachineImpl("bench");
+		for (int note : new int[] {5, 10, 20, 50}) {
+			cashMachine.addNoteToCashMachine(note, 10000000);
+		}
+
+		final int ioThreads = Runtime.getRuntime().availableProcessors();
+		try (WithdrawServer server = new WithdrawServer(cashMachine,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), ioThreads)) {
+			server.start();
+
+			out.println("connections  depth  requests/s");
+			for (int connections = 1; connections <= maxConnections; connections *= 2) {
+				for (int depth : DEPTHS) {
+					final long requests = run(server.getAddress(), connections, depth, seconds);
+					out.printf("%11d  %5d  %10d%n", connections, depth, requests / seconds);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return number of requests answered in the period.
+	 */
+	private static long run(final InetSocketAddress address, final int connections, final int depth,
+			final int seconds) throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(connections);
+		final List<Future<Long>> futures = new ArrayList<>(connections);
+
+		for (int c = 0; c < connections; c++) {
+			final byte[][] accounts = new byte[4][];
+			for (int a = 0; a < accounts.length; a++) {
+				accounts[a] = ("bench-" + c + "-" + a).getBytes(StandardCharsets.US_ASCII);
+			}
+
+			futures.add(executor.submit(() -> {
+				try (LoopbackClient client = new LoopbackClient(address)) {
+					for (byte[] account : accounts) {
+						client.send(Protocol.DEPOSIT, 0, account, 100000000000L);
+						client.receive();
+					}
+
+					return client.pipeline(accounts, AMOUNTS, depth, TimeUnit.SECONDS.toNanos(seconds));
+				}
+			}));
+		}
+
+		long requests = 0;
+		for (Future<Long> future : futures) {
+			requests += future.get();
+		}
+		executor.shutdown();
+
+		return requests;
+	}
+}
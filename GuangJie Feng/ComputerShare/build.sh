@@ -4,11 +4,15 @@ if [[ -e bin ]]; then
 	rm -rf bin
 fi
 
+if [[ -e bin-bench ]]; then
+	rm -rf bin-bench
+fi
+
 mkdir -p ./bin
 
 JARFILE="computershare.jar"
 
-javac -source 1.8 -target 1.8 -sourcepath ./src -d ./bin src/io/gfeng/app/WithdrawApp.java
+javac -source 1.8 -target 1.8 -sourcepath ./src -d ./bin $(find ./src -name "*.java")
 
 jar cfe $JARFILE io.gfeng.app.WithdrawApp  -C ./bin .
 
@@ -26,6 +30,28 @@ if [ -f $JARFILE ]; then
 else
 	echo "The file $JARFILE is not found."
 	echo "Build Fail"
+	exit 1
 fi
 
+# Build and run benchmarks, for example "./build.sh bench InventoryContentionBench 8 3"
+if [ "$1" == "bench" ]; then
+	mkdir -p ./bin-bench
+	
+	javac -source 1.8 -target 1.8 -cp ./bin -d ./bin-bench $(find ./bench -name "*.java")
+	
+	BENCH=${2:-InventoryContentionBench}
+	shift $(( $# < 2 ? $# : 2 ))
+	
+	echo ""
+	echo "Benchmark $BENCH"
+	java -cp ./bin:./bin-bench io.gfeng.bench.$BENCH "$@"
+fi
 
+# Build and run JMH benchmarks by Maven, for example "./build.sh jmh CashMachineBenchmark"
+if [ "$1" == "jmh" ]; then
+	mvn -q -f ./jmh/pom.xml package || exit 1
+	
+	echo ""
+	echo "JMH ${2:-all benchmarks}"
+	java -jar ./jmh/target/benchmarks.jar "${@:2}"
+fi
@@ -0,0 +1,67 @@
+package io.gfeng.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gfeng.account.Account;
+import io.gfeng.account.AccountImpl;
+import io.gfeng.account.exception.OverDrawnException;
+
+/**
+ * JMH benchmark of {@link AccountImpl} deposit, withdraw and check balance, on one hot account
+ * shared by all threads or on many accounts.
+ *
+ * @author gfeng
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccountBenchmark {
+	/**
+	 * Number of accounts shared by threads, a power of 2. One is a single hot account.
+	 */
+	@Param({"1", "1024"})
+	public int accounts;
+
+	private Account[] mAccounts;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		mAccounts = new Account[accounts];
+		for (int i = 0; i < accounts; i++) {
+			mAccounts[i] = new AccountImpl(String.format("%05d", i));
+			mAccounts[i].deposit(1e12);
+		}
+	}
+
+	@Benchmark
+	public double deposit(final Cursor cursor) {
+		return cursor.nextAccount(mAccounts).deposit(1.25);
+	}
+
+	@Benchmark
+	public double withdraw(final Cursor cursor) throws OverDrawnException {
+		return cursor.nextAccount(mAccounts).withdraw(1.25);
+	}
+
+	@Benchmark
+	public double checkBalance(final Cursor cursor) {
+		return cursor.nextAccount(mAccounts).checkBalance();
+	}
+}
@@ -0,0 +1,45 @@
+package io.gfeng.bench;
+
+import java.util.TreeSet;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the JMH benchmarks at 1, 4 and all available threads with the allocation profiler.
+ * Results of each thread count are written to "jmh-result-{threads}.csv", so runs before and
+ * after a change can be compared.
+ *
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar [benchmark regexp]
+ * </pre>
+ *
+ * @author gfeng
+ *
+ */
+public final class BenchmarkMain {
+	public static void main(String[] args) throws RunnerException {
+		final String include = args.length > 0 ? args[0] : BenchmarkMain.class.getPackage().getName() + ".*";
+
+		final TreeSet<Integer> threads = new TreeSet<>();
+		threads.add(1);
+		threads.add(4);
+		threads.add(Runtime.getRuntime().availableProcessors());
+
+		for (int count : threads) {
+			final Options options = new OptionsBuilder()
+					.include(include)
+					.threads(count)
+					.addProfiler(GCProfiler.class)
+					.resultFormat(ResultFormatType.CSV)
+					.result("jmh-result-" + count + ".csv")
+					.build();
+
+			new Runner(options).run();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package io.gfeng.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gfeng.account.Account;
+import io.gfeng.account.AccountImpl;
+import io.gfeng.cash.CashMachine;
+import io.gfeng.cash.CashMachineImpl;
+import io.gfeng.cash.WithdrawResult;
+import io.gfeng.cash.exception.CannotDisburseException;
+import io.gfeng.cash.exception.HigherThanMaximumException;
+import io.gfeng.cash.exception.LowBalanceException;
+import io.gfeng.cash.exception.LowThanMinimalException;
+
+/**
+ * JMH benchmark of {@link CashMachineImpl} withdraw, try withdraw and check account balance,
+ * on one hot account shared by all threads or on many accounts. The cash machine is filled
+ * with enough notes for each iteration, so every withdrawal takes the ideal plan.
+ *
+ * @author gfeng
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CashMachineBenchmark {
+	private static final int[] NOTES = {5, 10, 20, 50};
+
+	/**
+	 * Number of each note filled in for an iteration.
+	 */
+	private static final int NOTES_PER_ITERATION = 500000000;
+
+	/**
+	 * Number of accounts shared by threads, a power of 2. One is a single hot account.
+	 */
+	@Param({"1", "1024"})
+	public int accounts;
+
+	private CashMachine mCashMachine;
+
+	private Account[] mAccounts;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		mCashMachine = new CashMachineImpl("bench-001");
+		for (int note : NOTES) {
+			mCashMachine.addNoteToCashMachine(note, NOTES_PER_ITERATION);
+		}
+
+		mAccounts = new Account[accounts];
+		for (int i = 0; i < accounts; i++) {
+			mAccounts[i] = new AccountImpl(String.format("%05d", i));
+			mAccounts[i].deposit(1e12);
+		}
+	}
+
+	@Benchmark
+	public Map<Integer, Integer> withdraw(final Cursor cursor)
+			throws LowThanMinimalException, HigherThanMaximumException,
+			LowBalanceException, CannotDisburseException {
+		return mCashMachine.withdraw(cursor.nextAccount(mAccounts), cursor.nextWithdrawal());
+	}
+
+	@Benchmark
+	public WithdrawResult tryWithdraw(final Cursor cursor) {
+		return mCashMachine.tryWithdraw(cursor.nextAccount(mAccounts), cursor.nextWithdrawal());
+	}
+
+	@Benchmark
+	public String checkAccountBalance(final Cursor cursor) {
+		return mCashMachine.checkAccountBalance(cursor.nextAccount(mAccounts));
+	}
+}
@@ -0,0 +1,39 @@
+package io.gfeng.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import io.gfeng.account.Account;
+
+/**
+ * Per thread position in the shared accounts and withdrawals. Each thread starts at a random
+ * position, so threads spread over many accounts, or all meet on one hot account.
+ *
+ * @author gfeng
+ *
+ */
+@State(Scope.Thread)
+public class Cursor {
+	private int mAccount = ThreadLocalRandom.current().nextInt();
+
+	private int mWithdrawal = ThreadLocalRandom.current().nextInt();
+
+	/**
+	 * Return the next account. The number of accounts must be a power of 2.
+	 * @param accounts {@link Account}[]
+	 * @return {@link Account}
+	 */
+	public Account nextAccount(final Account[] accounts) {
+		return accounts[mAccount++ & (accounts.length - 1)];
+	}
+
+	/**
+	 * Return the next legal withdrawal, from 20 to 250 in multiples of 5.
+	 * @return int
+	 */
+	public int nextWithdrawal() {
+		return 20 + 5 * ((mWithdrawal++ & Integer.MAX_VALUE) % 47);
+	}
+}
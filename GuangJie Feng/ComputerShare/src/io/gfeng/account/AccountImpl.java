@@ -1,25 +1,30 @@
 package io.gfeng.account;
 
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
-import java.util.logging.Logger;
 
 import io.gfeng.account.exception.OverDrawnException;
+import io.gfeng.checkpoint.CheckpointEpoch;
+import io.gfeng.journal.TransactionJournal;
+import io.gfeng.trace.OperationTracer;
 
 /**
  * An {@link Account} implementation. The class has a {@link ReentrantReadWriteLock}
  * which make thread safe in deposit and withdraw certain amount.
+ * Operations are traced to the {@link OperationTracer} outside lock, if tracing is on,
+ * and counted in {@link AccountMetrics} with the time of the lock.
+ * Deposits and withdrawals pin a {@link CheckpointEpoch}, and the balance at the cut of a 
+ * checkpoint is kept.
+ * Deposits and withdrawals are kept in a {@link TransactionHistory} for statements.
+ * A transfer between two instances locks both in the order they were constructed, so 
+ * transfers in opposite directions cannot deadlock.
  * @author gfeng
  *
  */
 public final class AccountImpl implements Account {
-	/**
-	 * A {@link Logger} records information for debug and monitor.
-	 */
-	private static final Logger log = Logger.getLogger(AccountImpl.class.getName());
-
 	/**
 	 * An instance of {@link ReentrantReadWriteLock} for threading read/write safety. 
 	 */
@@ -45,15 +50,73 @@ public final class AccountImpl implements Account {
 	 */
 	private volatile double balance = 0;
 	
+	/**
+	 * The latest epoch which changed the balance, and the balance before it. The balance of the 
+	 * cut is negative if withdrawals of the epoch before took deposits after the cut. They are 
+	 * guarded by {@link WriteLock}.
+	 */
+	private long cutEpoch;
+	
+	private double cutBalance;
+	
+	/**
+	 * Deposits and withdrawals, created by the first of them. It is guarded by {@link WriteLock}.
+	 */
+	private TransactionHistory history;
+	
+	/**
+	 * A {@link TransactionJournal} records deposits and withdrawals, or null.
+	 */
+	private final TransactionJournal journal;
+	
+	/**
+	 * Counters shared by all instances.
+	 */
+	private static final AccountMetrics metrics = AccountMetrics.get();
+	
+	/**
+	 * Source of {@link #order}.
+	 */
+	private static final AtomicLong orders = new AtomicLong();
+	
+	/**
+	 * Order to lock the instance in a transfer, unique and increasing by construction.
+	 */
+	private final long order = orders.incrementAndGet();
+	
 	/**
 	 * Construct an account with a {@code String} account number.
 	 * @param accountNumber {@link String}
 	 */
 	public AccountImpl(String accountNumber){
+		this(accountNumber, null);
+	}
+	
+	/**
+	 * Construct an account which records every deposit and withdrawal in journal.
+	 * A deposit or withdrawal is durable before the method returns.
+	 * @param accountNumber {@link String}
+	 * @param journal {@link TransactionJournal}
+	 */
+	public AccountImpl(String accountNumber, TransactionJournal journal){
 		this.accountNumber = accountNumber;
 		this.lock = new ReentrantReadWriteLock(true);
 		this.readLock = lock.readLock();
 		this.writeLock = lock.writeLock();
+		this.journal = journal;
+		metrics.recordAccount();
+	}
+	
+	/**
+	 * Construct an account restored from a checkpoint with its balance. The balance is not 
+	 * recorded in journal.
+	 * @param accountNumber {@link String}
+	 * @param balance double
+	 * @param journal {@link TransactionJournal}, or null
+	 */
+	public AccountImpl(String accountNumber, double balance, TransactionJournal journal){
+		this(accountNumber, journal);
+		this.balance = balance;
 	}
 	
 	/**
@@ -68,11 +131,40 @@ public final class AccountImpl implements Account {
 	 * Return the current balance guarded by {@ ReadLock}
 	 */
 	public double checkBalance() {
+		final double current;
+		final long held;
+		final long begin = System.nanoTime();
 		readLock.lock();
+		final long locked = System.nanoTime();
 		
 		try {
-			log.fine(toString());
-			return balance;
+			current = balance;
+		} finally {
+			held = System.nanoTime() - locked;
+			readLock.unlock();
+		}
+		
+		metrics.recordLock(locked - begin, held);
+		metrics.recordBalanceCheck();
+		
+		final OperationTracer tracer = OperationTracer.current();
+		if (tracer != null)
+			tracer.trace(OperationTracer.BALANCE, accountNumber, null, 0, PenceAccount.toPence(current));
+		
+		return current;
+	}
+	
+	/**
+	 * Return balance in pence at the cut of a checkpoint, after every operation of the epoch 
+	 * before it has exited. Withdrawals of the epoch before which took deposits after the cut are 
+	 * charged to the new epoch, so it is never negative. It is guarded by {@link ReadLock}
+	 * @param epoch long the epoch started by the checkpoint
+	 * @return long
+	 */
+	public long getCheckpointBalance(long epoch) {
+		readLock.lock();
+		try {
+			return PenceAccount.toPence(cutEpoch >= epoch ? Math.max(0, cutBalance) : balance);
 		} finally {
 			readLock.unlock();
 		}
@@ -82,36 +174,263 @@ public final class AccountImpl implements Account {
 	 * Return balance after deposited value amount. The code guarded by {@link WriteLock}
 	 */
 	public double deposit(double value) {
+		final double update;
+		final long held;
+		final long sequence;
+		final long epoch = CheckpointEpoch.enter();
+		final long begin = System.nanoTime();
 		writeLock.lock();
+		final long locked = System.nanoTime();
 		
 		try {
-			log.fine(toString() + " deposit " + value);
-			balance += value;
-			log.fine(toString());
-			
-			return balance;
+			sequence = credit(value, epoch);
+			update = balance;
 		} finally {
+			held = System.nanoTime() - locked;
 			writeLock.unlock();
+			CheckpointEpoch.exit();
 		}
+		
+		metrics.recordLock(locked - begin, held);
+		metrics.recordDeposit(PenceAccount.toPence(value));
+		
+		final OperationTracer tracer = OperationTracer.current();
+		if (tracer != null)
+			tracer.trace(OperationTracer.DEPOSIT, accountNumber, null, 
+					PenceAccount.toPence(value), PenceAccount.toPence(update));
+		
+		//Wait for the journal outside lock, so other transactions share the commit
+		if (sequence != 0)
+			journal.await(sequence);
+		
+		return update;
 	}
 	
 	public double withdraw(double value) throws OverDrawnException {
+		final double update;
+		final boolean overdrawn;
+		final long held;
+		long sequence = 0;
+		final long epoch = CheckpointEpoch.enter();
+		final long begin = System.nanoTime();
 		writeLock.lock();
+		final long locked = System.nanoTime();
 		
 		try {
-			log.fine(toString() + " withdrew " + value);
-			
-			if (value > balance) {
-				final String msg = toString() + " fail to withdraw " + value;
-				throw new OverDrawnException(msg);
-			}
-			
-			balance -= value;
-			log.fine(toString());
-			
-			return balance;
+			overdrawn = !covers(value, epoch);
+			if (!overdrawn)
+				sequence = debit(value, epoch);
+			update = balance;
 		} finally {
+			held = System.nanoTime() - locked;
 			writeLock.unlock();
+			CheckpointEpoch.exit();
+		}
+		
+		metrics.recordLock(locked - begin, held);
+		if (overdrawn)
+			metrics.recordOverdraft();
+		else
+			metrics.recordWithdrawal(PenceAccount.toPence(value));
+		
+		final OperationTracer tracer = OperationTracer.current();
+		if (tracer != null)
+			tracer.trace(overdrawn ? OperationTracer.OVERDRAWN : OperationTracer.WITHDRAW, accountNumber, null, 
+					PenceAccount.toPence(value), PenceAccount.toPence(update));
+		
+		if (overdrawn)
+			throw new OverDrawnException(toString(update) + " fail to withdraw " + value);
+		
+		//Wait for the journal outside lock, so other transactions share the commit
+		if (sequence != 0)
+			journal.await(sequence);
+		
+		return update;
+	}
+
+	/**
+	 * Transfer value amount from an account to another, and return balance of from after it.
+	 * Both accounts are locked, the one constructed first first, so the transfer is atomic and 
+	 * transfers in opposite directions cannot deadlock. The transfer pins one {@link CheckpointEpoch}, 
+	 * so a checkpoint has both sides of it or neither.
+	 * @param from {@link AccountImpl} to withdraw from
+	 * @param to {@link AccountImpl} to deposit to, not from
+	 * @param value double
+	 * @return double
+	 * @throws OverDrawnException if from cannot cover value, and nothing is transferred
+	 */
+	static double transfer(AccountImpl from, AccountImpl to, double value) throws OverDrawnException {
+		final AccountImpl first = from.order < to.order ? from : to;
+		final AccountImpl second = first == from ? to : from;
+		final double update;
+		final double received;
+		final boolean overdrawn;
+		final long held;
+		long sequence = 0;
+		long receivedSequence = 0;
+		final long epoch = CheckpointEpoch.enter();
+		final long begin = System.nanoTime();
+		first.writeLock.lock();
+		second.writeLock.lock();
+		final long locked = System.nanoTime();
+		
+		try {
+			overdrawn = !from.covers(value, epoch);
+			if (!overdrawn) {
+				sequence = from.debit(value, epoch);
+				receivedSequence = to.credit(value, epoch);
+			}
+			update = from.balance;
+			received = to.balance;
+		} finally {
+			held = System.nanoTime() - locked;
+			second.writeLock.unlock();
+			first.writeLock.unlock();
+			CheckpointEpoch.exit();
+		}
+		
+		metrics.recordLock(locked - begin, held);
+		if (overdrawn) {
+			metrics.recordOverdraft();
+		} else {
+			metrics.recordWithdrawal(PenceAccount.toPence(value));
+			metrics.recordDeposit(PenceAccount.toPence(value));
+		}
+		
+		final OperationTracer tracer = OperationTracer.current();
+		if (tracer != null) {
+			tracer.trace(overdrawn ? OperationTracer.OVERDRAWN : OperationTracer.WITHDRAW, from.accountNumber, 
+					null, PenceAccount.toPence(value), PenceAccount.toPence(update));
+			if (!overdrawn)
+				tracer.trace(OperationTracer.DEPOSIT, to.accountNumber, null, 
+						PenceAccount.toPence(value), PenceAccount.toPence(received));
+		}
+		
+		if (overdrawn)
+			throw new OverDrawnException(from.toString(update) + " fail to transfer " + value 
+					+ " to " + to.accountNumber);
+		
+		//Wait for the journals outside lock, so other transactions share the commit
+		if (sequence != 0)
+			from.journal.await(sequence);
+		if (receivedSequence != 0)
+			to.journal.await(receivedSequence);
+		
+		return update;
+	}
+
+	/**
+	 * Return the last n deposits and withdrawals, oldest first. It is guarded by {@link ReadLock}
+	 * @param n int
+	 * @return {@link Statement}
+	 */
+	public Statement getLastTransactions(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException("n " + n + " should not be negative");
+		
+		readLock.lock();
+		try {
+			return history == null ? TransactionHistory.EMPTY : history.last(n);
+		} finally {
+			readLock.unlock();
+		}
+	}
+	
+	/**
+	 * Return deposits and withdrawals from time inclusive to time exclusive, oldest first. 
+	 * It is guarded by {@link ReadLock}
+	 * @param from long milliseconds since the epoch
+	 * @param to long milliseconds since the epoch
+	 * @return {@link Statement}
+	 */
+	public Statement getTransactions(long from, long to) {
+		readLock.lock();
+		try {
+			return history == null ? TransactionHistory.EMPTY : history.range(from, to);
+		} finally {
+			readLock.unlock();
+		}
+	}
+	
+	/**
+	 * Return pence withdrawn from time inclusive to time exclusive. It is guarded by {@link ReadLock}
+	 * @param from long milliseconds since the epoch
+	 * @param to long milliseconds since the epoch
+	 * @return long
+	 */
+	public long getWithdrawn(long from, long to) {
+		readLock.lock();
+		try {
+			return history == null ? 0 : history.sumWithdrawn(from, to);
+		} finally {
+			readLock.unlock();
+		}
+	}
+	
+	/**
+	 * Return pence withdrawn today, in the default time zone.
+	 * @return long
+	 */
+	public long getWithdrawnToday() {
+		return getWithdrawn(TransactionHistory.startOfDay(System.currentTimeMillis()), Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Return true if the balance covers a withdrawal of value. A checkpoint does not change it, 
+	 * whatever the epoch. It is guarded by {@link WriteLock}.
+	 */
+	private boolean covers(double value, long epoch) {
+		advance(epoch);
+		
+		return value <= balance;
+	}
+	
+	/**
+	 * Add value to the balance, and return the sequence of the journal, or 0. It is guarded 
+	 * by {@link WriteLock}.
+	 */
+	private long credit(double value, long epoch) {
+		advance(epoch);
+		balance += value;
+		if (epoch < cutEpoch)
+			cutBalance += value;
+		record(TransactionJournal.DEPOSIT, value);
+		
+		return journal == null ? 0 : journal.append(TransactionJournal.DEPOSIT, accountNumber, 
+				PenceAccount.toPence(value), PenceAccount.toPence(balance));
+	}
+	
+	/**
+	 * Take value from the balance after {@link #covers(double, long)}, and return the sequence 
+	 * of the journal, or 0. It is guarded by {@link WriteLock}.
+	 */
+	private long debit(double value, long epoch) {
+		balance -= value;
+		if (epoch < cutEpoch)
+			cutBalance -= value;
+		record(TransactionJournal.WITHDRAW, value);
+		
+		return journal == null ? 0 : journal.append(TransactionJournal.WITHDRAW, accountNumber, 
+				PenceAccount.toPence(value), PenceAccount.toPence(balance));
+	}
+	
+	/**
+	 * Append a deposit or withdrawal to history. It is guarded by {@link WriteLock}.
+	 */
+	private void record(byte type, double value) {
+		if (history == null)
+			history = new TransactionHistory();
+		
+		history.append(System.currentTimeMillis(), type, PenceAccount.toPence(value));
+	}
+	
+	/**
+	 * Keep the balance before the first change of a newer epoch. It is guarded by {@link WriteLock}.
+	 */
+	private void advance(long epoch) {
+		if (epoch > cutEpoch) {
+			cutBalance = balance;
+			cutEpoch = epoch;
 		}
 	}
 
@@ -145,9 +464,13 @@ public final class AccountImpl implements Account {
 	public String toString() {
 		readLock.lock();
 		try {
-			return "Account [accountNumber=" + accountNumber + ", balance=" + balance + "]";
+			return toString(balance);
 		} finally {
 			readLock.unlock();
 		}
 	}
+	
+	private String toString(double balance) {
+		return "Account [accountNumber=" + accountNumber + ", balance=" + balance + "]";
+	}
 }
@@ -0,0 +1,152 @@
+package io.gfeng.account;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of all {@link AccountImpl} instances together, published as an MXBean named
+ * {@code io.gfeng.account:type=AccountImpl} by {@link #register()}.
+ * <p>
+ * Counters are {@link LongAdder}s, which are striped across threads, so accounts updated from
+ * many threads share them without contention. Accounts record after releasing their locks.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class AccountMetrics implements AccountMetricsMXBean {
+	private static final AccountMetrics INSTANCE = new AccountMetrics();
+
+	private final LongAdder accounts = new LongAdder();
+
+	private final LongAdder deposits = new LongAdder();
+
+	private final LongAdder penceDeposited = new LongAdder();
+
+	private final LongAdder withdrawals = new LongAdder();
+
+	private final LongAdder penceWithdrawn = new LongAdder();
+
+	private final LongAdder overdrafts = new LongAdder();
+
+	private final LongAdder balanceChecks = new LongAdder();
+
+	private final LongAdder lockAcquisitions = new LongAdder();
+
+	private final LongAdder lockWaitNanos = new LongAdder();
+
+	private final LongAdder lockHoldNanos = new LongAdder();
+
+	private AccountMetrics() {
+	}
+
+	/**
+	 * Return counters of all {@link AccountImpl} instances.
+	 * @return {@link AccountMetrics}
+	 */
+	public static AccountMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Register to the platform MBean server, so it is readable by jconsole. Registering again
+	 * does nothing.
+	 * @return {@link ObjectName} registered
+	 * @throws JMException
+	 */
+	public static ObjectName register() throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName("io.gfeng.account:type=AccountImpl");
+		synchronized (INSTANCE) {
+			if (!server.isRegistered(name))
+				server.registerMBean(INSTANCE, name);
+		}
+
+		return name;
+	}
+
+	void recordAccount() {
+		accounts.increment();
+	}
+
+	void recordDeposit(final long pence) {
+		deposits.increment();
+		penceDeposited.add(pence);
+	}
+
+	void recordWithdrawal(final long pence) {
+		withdrawals.increment();
+		penceWithdrawn.add(pence);
+	}
+
+	void recordOverdraft() {
+		overdrafts.increment();
+	}
+
+	void recordBalanceCheck() {
+		balanceChecks.increment();
+	}
+
+	/**
+	 * Record a hold of the lock of an account.
+	 * @param waitNanos nanoseconds waited for the lock
+	 * @param holdNanos nanoseconds the lock was held
+	 */
+	void recordLock(final long waitNanos, final long holdNanos) {
+		lockAcquisitions.increment();
+		lockWaitNanos.add(waitNanos);
+		lockHoldNanos.add(holdNanos);
+	}
+
+	public long getAccounts() {
+		return accounts.sum();
+	}
+
+	public long getDeposits() {
+		return deposits.sum();
+	}
+
+	public long getPenceDeposited() {
+		return penceDeposited.sum();
+	}
+
+	public long getWithdrawals() {
+		return withdrawals.sum();
+	}
+
+	public long getPenceWithdrawn() {
+		return penceWithdrawn.sum();
+	}
+
+	public long getOverdrafts() {
+		return overdrafts.sum();
+	}
+
+	public long getBalanceChecks() {
+		return balanceChecks.sum();
+	}
+
+	public long getLockAcquisitions() {
+		return lockAcquisitions.sum();
+	}
+
+	public long getLockWaitNanos() {
+		return lockWaitNanos.sum();
+	}
+
+	public long getLockHoldNanos() {
+		return lockHoldNanos.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "AccountMetrics [accounts=" + getAccounts() + ", deposits=" + getDeposits()
+				+ ", withdrawals=" + getWithdrawals() + ", overdrafts=" + getOverdrafts()
+				+ ", balanceChecks=" + getBalanceChecks() + ", lockWaitNanos=" + getLockWaitNanos()
+				+ ", lockHoldNanos=" + getLockHoldNanos() + "]";
+	}
+}
@@ -0,0 +1,68 @@
+package io.gfeng.account;
+
+/**
+ * The management interface of {@link AccountMetrics}, readable by jconsole or any JMX client.
+ * @author gfeng
+ *
+ */
+public interface AccountMetricsMXBean {
+	/**
+	 * Return number of accounts constructed.
+	 * @return long
+	 */
+	long getAccounts();
+
+	/**
+	 * Return number of deposits.
+	 * @return long
+	 */
+	long getDeposits();
+
+	/**
+	 * Return sum of deposits in pence.
+	 * @return long
+	 */
+	long getPenceDeposited();
+
+	/**
+	 * Return number of withdrawals.
+	 * @return long
+	 */
+	long getWithdrawals();
+
+	/**
+	 * Return sum of withdrawals in pence.
+	 * @return long
+	 */
+	long getPenceWithdrawn();
+
+	/**
+	 * Return number of withdrawals refused because the balance was low.
+	 * @return long
+	 */
+	long getOverdrafts();
+
+	/**
+	 * Return number of balance checks.
+	 * @return long
+	 */
+	long getBalanceChecks();
+
+	/**
+	 * Return number of times the lock of an account was taken.
+	 * @return long
+	 */
+	long getLockAcquisitions();
+
+	/**
+	 * Return nanoseconds spent waiting for the locks of accounts.
+	 * @return long
+	 */
+	long getLockWaitNanos();
+
+	/**
+	 * Return nanoseconds the locks of accounts were held.
+	 * @return long
+	 */
+	long getLockHoldNanos();
+}
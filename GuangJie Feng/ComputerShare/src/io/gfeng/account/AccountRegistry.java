@@ -0,0 +1,459 @@
+package io.gfeng.account;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import io.gfeng.account.exception.OverDrawnException;
+
+/**
+ * A registry holds millions of accounts, looked up by account number.
+ * <p>
+ * Accounts are spread over shards, each guarded by its own {@link StampedLock}, so lookups and
+ * registrations in different shards never contend, and lookups in the same shard are
+ * optimistic reads. Numeric account numbers, for example {@code "01001"}, are kept in a compact
+ * layout: a primitive {@code long} key in an open addressing table and a {@code long} balance
+ * in pence in an {@link AtomicLongArray}, about 32 bytes per account. The {@link Account}
+ * returned by the registry is a light view of the slot, created on demand, and its balance is
+ * updated by compare-and-set. Other account numbers are held as {@link PenceAccount}.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class AccountRegistry {
+	/**
+	 * The default number of shards.
+	 */
+	private static final int DEFAULT_SHARDS = 64;
+
+	/**
+	 * Maximum digits of a numeric account number held in the compact layout.
+	 * The number of digits is kept in the key, so {@code "01001"} and {@code "1001"} differ.
+	 */
+	private static final int MAXIMUM_DIGITS = 17;
+
+	/**
+	 * Bit shift of the number of digits in a key.
+	 */
+	private static final int DIGITS_SHIFT = 57;
+
+	/**
+	 * Number of balances in a chunk is {@code 1 << CHUNK_BITS}.
+	 */
+	private static final int CHUNK_BITS = 12;
+
+	private final Shard[] shards;
+
+	/**
+	 * Accounts whose numbers are not numeric.
+	 */
+	private final ConcurrentHashMap<String, PenceAccount> others;
+
+	/**
+	 * Construct an empty registry.
+	 */
+	public AccountRegistry() {
+		this(DEFAULT_SHARDS);
+	}
+
+	/**
+	 * Construct an empty registry.
+	 * @param shards int number of shards, rounded up to a power of two
+	 */
+	public AccountRegistry(int shards) {
+		if (shards <= 0)
+			throw new IllegalArgumentException("shards " + shards + " should be greater than zero");
+
+		final int size = Integer.highestOneBit(shards - 1) << 1;
+		this.shards = new Shard[Math.max(1, size)];
+		for (int i = 0; i < this.shards.length; i++) {
+			this.shards[i] = new Shard();
+		}
+		this.others = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Return the {@link Account} of the account number, or null if it is not registered.
+	 * @param accountNumber {@link String}
+	 * @return {@link Account}
+	 */
+	public Account get(final String accountNumber) {
+		final long key = keyOf(accountNumber);
+		if (key == 0)
+			return others.get(accountNumber);
+
+		final Shard shard = shardOf(key);
+		final int slot = shard.find(key);
+
+		return slot < 0 ? null : new CompactAccount(shard, slot, key);
+	}
+
+	/**
+	 * Return the {@link Account} of the account number. Register it with zero balance
+	 * if it is not registered.
+	 * @param accountNumber {@link String}
+	 * @return {@link Account}
+	 */
+	public Account getOrCreate(final String accountNumber) {
+		final long key = keyOf(accountNumber);
+		if (key == 0)
+			return others.computeIfAbsent(accountNumber, PenceAccount::new);
+
+		final Shard shard = shardOf(key);
+
+		return new CompactAccount(shard, shard.findOrAdd(key), key);
+	}
+
+	/**
+	 * Bulk load accounts. An account already registered gets the loaded balance.
+	 * Shards are loaded in parallel, each under one write lock.
+	 * @param accountNumbers {@link String} array of account numbers
+	 * @param balances long array of balances in pence, in the same order
+	 */
+	public void load(final String[] accountNumbers, final long[] balances) {
+		if (accountNumbers.length != balances.length)
+			throw new IllegalArgumentException("There are " + accountNumbers.length
+					+ " account numbers but " + balances.length + " balances");
+
+		//Group accounts by shard
+		final long[] keys = new long[accountNumbers.length];
+		final int[] counts = new int[shards.length + 1];
+		for (int i = 0; i < accountNumbers.length; i++) {
+			keys[i] = keyOf(accountNumbers[i]);
+			if (keys[i] == 0) {
+				final PenceAccount exist = others.putIfAbsent(accountNumbers[i],
+						new PenceAccount(accountNumbers[i], balances[i]));
+				if (exist != null)
+					exist.depositPence(balances[i] - exist.checkBalancePence());
+			} else {
+				counts[shardIndexOf(keys[i]) + 1]++;
+			}
+		}
+		for (int s = 0; s < shards.length; s++) {
+			counts[s + 1] += counts[s];
+		}
+
+		final int[] order = new int[counts[shards.length]];
+		final int[] next = Arrays.copyOf(counts, shards.length);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0)
+				order[next[shardIndexOf(keys[i])]++] = i;
+		}
+
+		IntStream.range(0, shards.length).parallel().forEach(s ->
+				shards[s].load(keys, balances, order, counts[s], counts[s + 1]));
+	}
+
+	/**
+	 * Visit every account, shards in parallel. It is for end of day jobs. Accounts registered
+	 * while visiting may or may not be visited.
+	 * @param visitor {@link Consumer} of {@link Account}, called from many threads
+	 */
+	public void forEach(final Consumer<? super Account> visitor) {
+		IntStream.range(0, shards.length).parallel().forEach(s -> shards[s].forEach(visitor));
+		others.values().parallelStream().forEach(visitor);
+	}
+
+	/**
+	 * Return the number of accounts registered.
+	 * @return int
+	 */
+	public int size() {
+		int size = others.size();
+		for (Shard shard : shards) {
+			size += shard.size();
+		}
+
+		return size;
+	}
+
+	private Shard shardOf(final long key) {
+		return shards[shardIndexOf(key)];
+	}
+
+	private int shardIndexOf(final long key) {
+		return (int) (mix(key) >>> 40) & (shards.length - 1);
+	}
+
+	/**
+	 * Return the compact key of a numeric account number, or 0 if it is not numeric.
+	 */
+	private static long keyOf(final String accountNumber) {
+		final int digits = accountNumber.length();
+		if (digits == 0 || digits > MAXIMUM_DIGITS)
+			return 0;
+
+		long value = 0;
+		for (int i = 0; i < digits; i++) {
+			final char c = accountNumber.charAt(i);
+			if (c < '0' || c > '9')
+				return 0;
+			value = value * 10 + (c - '0');
+		}
+
+		return ((long) digits << DIGITS_SHIFT) | value;
+	}
+
+	/**
+	 * Return the account number of a compact key.
+	 */
+	private static String accountNumberOf(final long key) {
+		final int digits = (int) (key >>> DIGITS_SHIFT);
+		final char[] chars = new char[digits];
+		long value = key & ((1L << DIGITS_SHIFT) - 1);
+		for (int i = digits - 1; i >= 0; i--) {
+			chars[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+
+		return new String(chars);
+	}
+
+	private static long mix(long key) {
+		key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+		key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+
+		return key ^ (key >>> 33);
+	}
+
+	/**
+	 * An open addressing table of keys to slots, and balances in chunks indexed by slot.
+	 * Slots never move, so a {@link CompactAccount} stays valid while the table grows.
+	 */
+	private static final class Shard {
+		private final StampedLock lock = new StampedLock();
+
+		/**
+		 * Keys and slots of the open addressing table. It is replaced when the table grows.
+		 * Guarded by write lock, read optimistically.
+		 */
+		private volatile Table table = new Table(16);
+
+		/**
+		 * Balances in pence, indexed by slot. Chunks are added under write lock and never move.
+		 */
+		private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+		/**
+		 * Keys indexed by slot, for visiting. Guarded by write lock.
+		 */
+		private long[] slotKeys = new long[0];
+
+		/**
+		 * Number of accounts. Guarded by write lock.
+		 */
+		private volatile int size;
+
+		int find(final long key) {
+			long stamp = lock.tryOptimisticRead();
+			int slot = table.find(key);
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					slot = table.find(key);
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+
+			return slot;
+		}
+
+		int findOrAdd(final long key) {
+			final int slot = find(key);
+			if (slot >= 0)
+				return slot;
+
+			final long stamp = lock.writeLock();
+			try {
+				final int exist = table.find(key);
+
+				return exist >= 0 ? exist : add(key, 0);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		void load(final long[] keys, final long[] balances, final int[] order, final int from, final int to) {
+			if (from == to)
+				return;
+
+			final long stamp = lock.writeLock();
+			try {
+				reserve(size + to - from);
+				for (int i = from; i < to; i++) {
+					final long key = keys[order[i]];
+					final int exist = table.find(key);
+					if (exist >= 0)
+						chunks[exist >>> CHUNK_BITS].set(exist & ((1 << CHUNK_BITS) - 1), balances[order[i]]);
+					else
+						add(key, balances[order[i]]);
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		void forEach(final Consumer<? super Account> visitor) {
+			final long[] keys;
+			final int count;
+			final long stamp = lock.readLock();
+			try {
+				keys = slotKeys;
+				count = size;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+
+			for (int slot = 0; slot < count; slot++) {
+				visitor.accept(new CompactAccount(this, slot, keys[slot]));
+			}
+		}
+
+		int size() {
+			return size;
+		}
+
+		AtomicLongArray chunkOf(final int slot) {
+			return chunks[slot >>> CHUNK_BITS];
+		}
+
+		/**
+		 * Add key with balance as a new slot. It is guarded by write lock.
+		 */
+		private int add(final long key, final long balance) {
+			reserve(size + 1);
+
+			final int slot = size;
+			chunks[slot >>> CHUNK_BITS].set(slot & ((1 << CHUNK_BITS) - 1), balance);
+			slotKeys[slot] = key;
+			table.put(key, slot);
+			size = slot + 1;
+
+			return slot;
+		}
+
+		/**
+		 * Grow table, chunks and keys for capacity accounts. It is guarded by write lock.
+		 */
+		private void reserve(final int capacity) {
+			if (capacity * 2 > table.keys.length) {
+				final Table grown = new Table(Integer.highestOneBit(capacity * 4 - 1));
+				final Table current = table;
+				for (int i = 0; i < current.keys.length; i++) {
+					if (current.keys[i] != 0)
+						grown.put(current.keys[i], current.slots[i]);
+				}
+				table = grown;
+			}
+
+			final int chunkCount = (capacity + (1 << CHUNK_BITS) - 1) >>> CHUNK_BITS;
+			if (chunkCount > chunks.length) {
+				final AtomicLongArray[] grown = Arrays.copyOf(chunks, chunkCount);
+				for (int i = chunks.length; i < chunkCount; i++) {
+					grown[i] = new AtomicLongArray(1 << CHUNK_BITS);
+				}
+				chunks = grown;
+			}
+
+			if (capacity > slotKeys.length)
+				slotKeys = Arrays.copyOf(slotKeys, Math.max(capacity, slotKeys.length * 2));
+		}
+	}
+
+	/**
+	 * Keys and slots of an open addressing table with linear probing. 0 is the empty key.
+	 */
+	private static final class Table {
+		private final long[] keys;
+		private final int[] slots;
+
+		Table(final int capacity) {
+			this.keys = new long[capacity];
+			this.slots = new int[capacity];
+		}
+
+		int find(final long key) {
+			final int mask = keys.length - 1;
+			for (int i = (int) mix(key) & mask; ; i = (i + 1) & mask) {
+				final long k = keys[i];
+				if (k == key)
+					return slots[i];
+				if (k == 0)
+					return -1;
+			}
+		}
+
+		void put(final long key, final int slot) {
+			final int mask = keys.length - 1;
+			int i = (int) mix(key) & mask;
+			while (keys[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = slot;
+			keys[i] = key;
+		}
+	}
+
+	/**
+	 * A light {@link Account} view of a slot. Its balance is updated by compare-and-set.
+	 */
+	private static final class CompactAccount implements Account {
+		private final AtomicLongArray chunk;
+		private final int index;
+		private final long key;
+
+		CompactAccount(final Shard shard, final int slot, final long key) {
+			this.chunk = shard.chunkOf(slot);
+			this.index = slot & ((1 << CHUNK_BITS) - 1);
+			this.key = key;
+		}
+
+		public double checkBalance() {
+			return PenceAccount.toPounds(chunk.get(index));
+		}
+
+		public double deposit(double value) {
+			return PenceAccount.toPounds(chunk.addAndGet(index, PenceAccount.toPence(value)));
+		}
+
+		public double withdraw(double value) throws OverDrawnException {
+			final long pence = PenceAccount.toPence(value);
+			while (true) {
+				final long current = chunk.get(index);
+				if (pence > current)
+					throw new OverDrawnException(toString() + " fail to withdraw " + value);
+
+				if (chunk.compareAndSet(index, current, current - pence))
+					return PenceAccount.toPounds(current - pence);
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(key);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+
+			return key == ((CompactAccount) obj).key;
+		}
+
+		@Override
+		public String toString() {
+			return "Account [accountNumber=" + accountNumberOf(key)
+					+ ", balance=" + PenceAccount.toPounds(chunk.get(index)) + "]";
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package io.gfeng.account;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.gfeng.account.exception.OverDrawnException;
+
+/**
+ * Account balances in a memory mapped file instead of the Java heap. Each account has a fixed
+ * 8 bytes slot of balance in pence, addressed by account index, and is updated atomically in
+ * place on the mapped memory under the lock of its stripe. A restarted process opens the file
+ * and has every balance without loading or deserializing, and the balances are out of reach
+ * of GC.
+ * <p>
+ * Java 8 has no public compare-and-set on mapped memory, so slots are spread over striped
+ * locks instead. Neighbouring slots are in different stripes, so accounts rarely wait for
+ * each other.
+ * <p>
+ * The file has a 64 bytes header of a magic number and the capacity, followed by the slots in
+ * native byte order. The file is mapped in segments of 1 GB. Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class MappedBalanceStore implements Closeable {
+	/**
+	 * The magic number in the header, "GFBALNC1".
+	 */
+	private static final long MAGIC = 0x474642414c4e4331L;
+
+	private static final int HEADER_BYTES = 64;
+
+	/**
+	 * Number of slots in a segment is {@code 1 << SEGMENT_BITS}.
+	 */
+	private static final int SEGMENT_BITS = 27;
+
+	/**
+	 * Number of striped locks, a power of two.
+	 */
+	private static final int STRIPES = 64;
+
+	private final FileChannel channel;
+
+	/**
+	 * Mapped segments of slots. They are kept referenced so the memory stays mapped.
+	 */
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * The lock of each stripe of slots. A slot is read and written only under its lock.
+	 */
+	private final Object[] locks = new Object[STRIPES];
+
+	private final long capacity;
+
+	private MappedBalanceStore(final FileChannel channel, final long capacity) throws IOException {
+		this.channel = channel;
+		this.capacity = capacity;
+
+		final int count = (int) ((capacity + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+		this.segments = new MappedByteBuffer[count];
+		for (int s = 0; s < count; s++) {
+			final long slots = Math.min(1L << SEGMENT_BITS, capacity - ((long) s << SEGMENT_BITS));
+			segments[s] = channel.map(MapMode.READ_WRITE,
+					HEADER_BYTES + ((long) s << (SEGMENT_BITS + 3)), slots << 3);
+			segments[s].order(ByteOrder.nativeOrder());
+		}
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Open the store in file, or create it with capacity accounts of zero balance.
+	 * @param file {@link Path}
+	 * @param capacity long number of accounts, used when the file is created
+	 * @return {@link MappedBalanceStore}
+	 * @throws IOException if the file cannot be opened, or is not a balance store.
+	 */
+	public static MappedBalanceStore open(final Path file, final long capacity) throws IOException {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity " + capacity + " should be greater than zero");
+
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			final long storeCapacity;
+			if (channel.size() == 0) {
+				header.putLong(MAGIC).putLong(capacity).rewind();
+				channel.write(header, 0);
+				storeCapacity = capacity;
+			} else {
+				channel.read(header, 0);
+				header.flip();
+				if (header.remaining() < 16 || header.getLong() != MAGIC)
+					throw new IOException(file + " is not a balance store");
+				storeCapacity = header.getLong();
+			}
+
+			return new MappedBalanceStore(channel, storeCapacity);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return the number of accounts in the store.
+	 * @return long
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Return the {@link Account} of the slot at index.
+	 * @param index long account index, from 0 to capacity - 1
+	 * @return {@link Account}
+	 */
+	public Account account(final long index) {
+		return new MappedAccount(this, index);
+	}
+
+	/**
+	 * Return balance in pence of the account at index.
+	 * @param index long
+	 * @return long
+	 */
+	public long getBalance(final long index) {
+		final MappedByteBuffer segment = segmentOf(index);
+		synchronized (lockOf(index)) {
+			return segment.getLong(offsetOf(index));
+		}
+	}
+
+	/**
+	 * Return balance in pence after deposited pence to the account at index.
+	 * @param index long
+	 * @param pence long
+	 * @return long
+	 */
+	public long deposit(final long index, final long pence) {
+		final MappedByteBuffer segment = segmentOf(index);
+		final int offset = offsetOf(index);
+		synchronized (lockOf(index)) {
+			final long update = segment.getLong(offset) + pence;
+			segment.putLong(offset, update);
+
+			return update;
+		}
+	}
+
+	/**
+	 * Return balance in pence after withdrew pence from the account at index.
+	 * @param index long
+	 * @param pence long
+	 * @return long
+	 * @throws OverDrawnException if pence is greater than balance.
+	 */
+	public long withdraw(final long index, final long pence) throws OverDrawnException {
+		final MappedByteBuffer segment = segmentOf(index);
+		final int offset = offsetOf(index);
+		final long current;
+		synchronized (lockOf(index)) {
+			current = segment.getLong(offset);
+			if (pence <= current) {
+				segment.putLong(offset, current - pence);
+
+				return current - pence;
+			}
+		}
+
+		throw new OverDrawnException("Account [index=" + index + ", balance="
+				+ PenceAccount.toPounds(current) + "] fail to withdraw " + PenceAccount.toPounds(pence));
+	}
+
+	/**
+	 * Write balances changed in memory to the file.
+	 */
+	public void force() {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * Write balances to the file and close it. The memory stays mapped until the store is
+	 * garbage collected, so accounts must not be used after closing.
+	 */
+	@Override
+	public void close() throws IOException {
+		force();
+		channel.close();
+	}
+
+	private MappedByteBuffer segmentOf(final long index) {
+		if (index < 0 || index >= capacity)
+			throw new IndexOutOfBoundsException("index " + index + " is out of capacity " + capacity);
+
+		return segments[(int) (index >>> SEGMENT_BITS)];
+	}
+
+	private static int offsetOf(final long index) {
+		return (int) (index & ((1L << SEGMENT_BITS) - 1)) << 3;
+	}
+
+	private Object lockOf(final long index) {
+		return locks[(int) index & (STRIPES - 1)];
+	}
+
+	/**
+	 * An {@link Account} view of a slot in the store.
+	 */
+	private static final class MappedAccount implements Account {
+		private final MappedBalanceStore store;
+		private final long index;
+
+		MappedAccount(final MappedBalanceStore store, final long index) {
+			store.segmentOf(index);
+
+			this.store = store;
+			this.index = index;
+		}
+
+		public double checkBalance() {
+			return PenceAccount.toPounds(store.getBalance(index));
+		}
+
+		public double deposit(double value) {
+			return PenceAccount.toPounds(store.deposit(index, PenceAccount.toPence(value)));
+		}
+
+		public double withdraw(double value) throws OverDrawnException {
+			return PenceAccount.toPounds(store.withdraw(index, PenceAccount.toPence(value)));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(store) + Long.hashCode(index);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			final MappedAccount other = (MappedAccount) obj;
+
+			return store == other.store && index == other.index;
+		}
+
+		@Override
+		public String toString() {
+			return "Account [index=" + index + ", balance=" + checkBalance() + "]";
+		}
+	}
+}
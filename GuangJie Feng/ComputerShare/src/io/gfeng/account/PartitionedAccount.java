@@ -0,0 +1,136 @@
+package io.gfeng.account;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import io.gfeng.account.exception.OverDrawnException;
+
+/**
+ * An {@link Account} of {@link PartitionedAccounts}. Each operation is a command to the writer of
+ * its partition, which owns the balance. The async methods return the balance in pence as a
+ * {@link CompletableFuture}, and the methods of {@link Account} wait for it.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class PartitionedAccount implements Account {
+	private final String accountNumber;
+
+	private final PartitionedAccounts.Partition partition;
+
+	/**
+	 * Index of the balance in its partition.
+	 */
+	final int index;
+
+	PartitionedAccount(String accountNumber, PartitionedAccounts.Partition partition, int index) {
+		this.accountNumber = accountNumber;
+		this.partition = partition;
+		this.index = index;
+	}
+
+	/**
+	 * Return the account number
+	 * @return {@link String}
+	 */
+	public String getAccountNumber() {
+		return accountNumber;
+	}
+
+	/**
+	 * Return the balance in pence after the commands submitted before.
+	 * @return {@link CompletableFuture}
+	 */
+	public CompletableFuture<Long> checkBalanceAsync() {
+		return partition.submit(PartitionedAccounts.BALANCE, this, 0);
+	}
+
+	/**
+	 * Return balance in pence after deposited pence.
+	 * @param pence long
+	 * @return {@link CompletableFuture}
+	 */
+	public CompletableFuture<Long> depositAsync(long pence) {
+		return partition.submit(PartitionedAccounts.DEPOSIT, this, pence);
+	}
+
+	/**
+	 * Return balance in pence after withdrew pence, or completed exceptionally by
+	 * {@link OverDrawnException} if pence is greater than balance.
+	 * @param pence long
+	 * @return {@link CompletableFuture}
+	 */
+	public CompletableFuture<Long> withdrawAsync(long pence) {
+		return partition.submit(PartitionedAccounts.WITHDRAW, this, pence);
+	}
+
+	/**
+	 * Return the current balance, waiting for the writer.
+	 */
+	public double checkBalance() {
+		checkWaitable();
+
+		return PenceAccount.toPounds(checkBalanceAsync().join());
+	}
+
+	/**
+	 * Return balance after deposited value amount, waiting for the writer.
+	 */
+	public double deposit(double value) {
+		checkWaitable();
+
+		return PenceAccount.toPounds(depositAsync(PenceAccount.toPence(value)).join());
+	}
+
+	public double withdraw(double value) throws OverDrawnException {
+		checkWaitable();
+
+		try {
+			return PenceAccount.toPounds(withdrawAsync(PenceAccount.toPence(value)).join());
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof OverDrawnException)
+				throw (OverDrawnException) e.getCause();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * The writer would wait for itself.
+	 */
+	private void checkWaitable() {
+		if (partition.isWriter())
+			throw new IllegalStateException("Cannot wait for " + accountNumber + " on the writer of its partition");
+	}
+
+	@Override
+	public int hashCode() {
+		return accountNumber.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+
+		return accountNumber.equals(((PartitionedAccount) obj).accountNumber);
+	}
+
+	/**
+	 * Return the information of the instance. The balance is the last one seen, without waiting
+	 * for the writer.
+	 */
+	@Override
+	public String toString() {
+		return toString(partition.peek(index));
+	}
+
+	String toString(long balance) {
+		return "Account [accountNumber=" + accountNumber + ", balance=" + PenceAccount.toPounds(balance) + "]";
+	}
+}
@@ -0,0 +1,336 @@
+package io.gfeng.account;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import io.gfeng.account.exception.OverDrawnException;
+
+/**
+ * Accounts run by single writer partitions, in the style of the LMAX Disruptor.
+ * <p>
+ * Accounts are spread over partitions by account number. Each partition is owned by one thread,
+ * which drains a bounded ring of commands in order and applies them to a primitive array of
+ * balances in pence. Only that thread touches the balances, so deposits and withdrawals take no
+ * lock and the balances stay in the cache of its core. Callers claim a slot of the ring by
+ * compare-and-set, publish the command in it, and get a {@link CompletableFuture} of the balance,
+ * completed by the writer. A caller waits for a slot when the ring is full, so the ring is also
+ * the back pressure.
+ * <p>
+ * The writer takes every command published since its last pass as one batch, and spins, then
+ * yields, then parks when the ring is empty. Callers unpark it only when it is parked.
+ * The sequences claimed and consumed are in their own cache lines, so callers and the writer
+ * share a line only to hand over a command.
+ * <p>
+ * The accounts returned are {@link PartitionedAccount}, which also implement {@link Account}, so
+ * they can be used by a {@link io.gfeng.cash.CashMachine} in place of the lock based accounts.
+ * Futures are completed by the writer thread, so their dependent actions run on it unless they
+ * are async. Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class PartitionedAccounts implements Closeable {
+	/**
+	 * The default number of commands a ring holds.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	static final byte DEPOSIT = 1;
+
+	static final byte WITHDRAW = 2;
+
+	static final byte BALANCE = 3;
+
+	/**
+	 * Distance between sequences, so each is in its own cache line.
+	 */
+	private static final int PADDING = 16;
+
+	private static final int CLAIMED = PADDING;
+
+	private static final int CONSUMED = 2 * PADDING;
+
+	/**
+	 * Number of idle passes the writer spins, then yields, before it parks.
+	 */
+	private static final int SPINS = 64;
+
+	private static final int YIELDS = 256;
+
+	private static final int INITIAL_ACCOUNTS = 1024;
+
+	private final Partition[] partitions;
+
+	private final ConcurrentHashMap<String, PartitionedAccount> accounts = new ConcurrentHashMap<>();
+
+	/**
+	 * A command of the ring. It is published by its slot, so its fields need not be volatile.
+	 */
+	private static final class Command {
+		private final byte type;
+
+		private final PartitionedAccount account;
+
+		private final long pence;
+
+		private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+		private Command(final byte type, final PartitionedAccount account, final long pence) {
+			this.type = type;
+			this.account = account;
+			this.pence = pence;
+		}
+	}
+
+	/**
+	 * A ring of commands and the balances of its accounts, owned by one writer thread.
+	 */
+	static final class Partition implements Runnable {
+		private final Command[] slots;
+
+		private final int mask;
+
+		/**
+		 * Sequence of the command published in each slot, -1 before the first.
+		 */
+		private final AtomicLongArray published;
+
+		/**
+		 * The next sequence to claim, negative once closed, and the next to consume.
+		 */
+		private final AtomicLongArray sequences = new AtomicLongArray(3 * PADDING);
+
+		private final AtomicInteger size = new AtomicInteger();
+
+		private final Thread writer;
+
+		private volatile boolean parked;
+
+		/**
+		 * Balances in pence by index of account. They are owned by the writer.
+		 */
+		private long[] balances = new long[INITIAL_ACCOUNTS];
+
+		private Partition(final int index, final int capacity) {
+			this.slots = new Command[capacity];
+			this.mask = capacity - 1;
+			this.published = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++) {
+				published.set(i, -1);
+			}
+
+			this.writer = new Thread(this, "partition-" + index);
+			writer.setDaemon(true);
+		}
+
+		/**
+		 * Publish a command, and return its result.
+		 * @throws IllegalStateException if the accounts are closed
+		 */
+		CompletableFuture<Long> submit(final byte type, final PartitionedAccount account, final long pence) {
+			final Command command = new Command(type, account, pence);
+
+			long next;
+			int idle = 0;
+			while (true) {
+				next = sequences.get(CLAIMED);
+				if (next < 0)
+					throw new IllegalStateException("Accounts are closed");
+
+				if (next - sequences.get(CONSUMED) >= slots.length) {
+					//Full, wait for the writer
+					if (++idle < SPINS)
+						Thread.yield();
+					else
+						LockSupport.parkNanos(1000);
+				} else if (sequences.compareAndSet(CLAIMED, next, next + 1)) {
+					break;
+				}
+			}
+
+			final int slot = (int) next & mask;
+			slots[slot] = command;
+			published.set(slot, next);
+			if (parked)
+				LockSupport.unpark(writer);
+
+			return command.result;
+		}
+
+		/**
+		 * Return true if the calling thread is the writer.
+		 */
+		boolean isWriter() {
+			return Thread.currentThread() == writer;
+		}
+
+		/**
+		 * Return the last balance in pence of the account at index, without ordering, for display.
+		 */
+		long peek(final int index) {
+			final long[] current = balances;
+
+			return index < current.length ? current[index] : 0;
+		}
+
+		@Override
+		public void run() {
+			long consumed = 0;
+			int idle = 0;
+
+			while (true) {
+				long end = consumed;
+				while (published.get((int) end & mask) == end) {
+					final int slot = (int) end & mask;
+					final Command command = slots[slot];
+					slots[slot] = null;
+					execute(command);
+					end++;
+				}
+
+				if (end > consumed) {
+					consumed = end;
+					sequences.lazySet(CONSUMED, consumed);
+					idle = 0;
+					continue;
+				}
+
+				//Closed, and every command claimed before is done
+				final long claimed = sequences.get(CLAIMED);
+				if (claimed < 0 && (claimed & Long.MAX_VALUE) == consumed)
+					return;
+
+				if (++idle < SPINS)
+					continue;
+				if (idle < YIELDS) {
+					Thread.yield();
+					continue;
+				}
+
+				parked = true;
+				//A command published meanwhile saw parked, or is seen here
+				if (published.get((int) consumed & mask) != consumed && sequences.get(CLAIMED) >= 0)
+					LockSupport.park(this);
+				parked = false;
+			}
+		}
+
+		private void execute(final Command command) {
+			final int index = command.account.index;
+			if (index >= balances.length)
+				balances = Arrays.copyOf(balances, Math.max(balances.length * 2, index + 1));
+
+			final long balance = balances[index];
+			switch (command.type) {
+			case DEPOSIT:
+				balances[index] = balance + command.pence;
+				command.result.complete(balance + command.pence);
+				break;
+			case WITHDRAW:
+				if (command.pence > balance) {
+					command.result.completeExceptionally(new OverDrawnException(command.account.toString(balance)
+							+ " fail to withdraw " + PenceAccount.toPounds(command.pence)));
+				} else {
+					balances[index] = balance - command.pence;
+					command.result.complete(balance - command.pence);
+				}
+				break;
+			default:
+				command.result.complete(balance);
+			}
+		}
+
+		private void close() {
+			while (true) {
+				final long claimed = sequences.get(CLAIMED);
+				if (claimed < 0 || sequences.compareAndSet(CLAIMED, claimed, claimed | Long.MIN_VALUE))
+					break;
+			}
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Construct accounts on a partition for each processor.
+	 */
+	public PartitionedAccounts() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Construct accounts, and start the writer of each partition.
+	 * @param partitions int number of partitions, each a thread
+	 * @param capacity int number of commands a ring holds, rounded up to a power of two
+	 */
+	public PartitionedAccounts(final int partitions, final int capacity) {
+		if (partitions <= 0 || capacity <= 0)
+			throw new IllegalArgumentException("partitions " + partitions + " and capacity " + capacity
+					+ " should be greater than zero");
+
+		final int size = Math.max(1, Integer.highestOneBit(capacity - 1) << 1);
+		this.partitions = new Partition[partitions];
+		for (int i = 0; i < partitions; i++) {
+			this.partitions[i] = new Partition(i, size);
+			this.partitions[i].writer.start();
+		}
+	}
+
+	/**
+	 * Return the account of the account number, or null if it is not created.
+	 * @param accountNumber {@link String}
+	 * @return {@link PartitionedAccount}
+	 */
+	public PartitionedAccount get(final String accountNumber) {
+		return accounts.get(accountNumber);
+	}
+
+	/**
+	 * Return the account of the account number. Create it with zero balance if it is not created.
+	 * @param accountNumber {@link String}
+	 * @return {@link PartitionedAccount}
+	 */
+	public PartitionedAccount getOrCreate(final String accountNumber) {
+		return accounts.computeIfAbsent(accountNumber, number -> {
+			final Partition partition = partitions[(number.hashCode() & Integer.MAX_VALUE) % partitions.length];
+
+			return new PartitionedAccount(number, partition, partition.size.getAndIncrement());
+		});
+	}
+
+	/**
+	 * Return number of accounts.
+	 * @return int
+	 */
+	public int size() {
+		return accounts.size();
+	}
+
+	/**
+	 * Return number of partitions.
+	 * @return int
+	 */
+	public int getPartitions() {
+		return partitions.length;
+	}
+
+	/**
+	 * Stop taking commands. The commands published before are still done, then the writers exit.
+	 */
+	@Override
+	public void close() {
+		for (Partition partition : partitions) {
+			partition.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PartitionedAccounts [partitions=" + partitions.length + ", capacity=" + partitions[0].slots.length
+				+ ", accounts=" + accounts.size() + "]";
+	}
+}
@@ -0,0 +1,171 @@
+package io.gfeng.account;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.gfeng.account.exception.OverDrawnException;
+
+/**
+ * A lock free {@link Account} implementation. The balance is a fixed point {@code long} in pence
+ * updated by compare-and-set, so there is no rounding drift of {@code double} and no lock
+ * handoff between threads. {@link #checkBalance()} is one volatile read.
+ * @author gfeng
+ *
+ */
+public final class PenceAccount implements Account {
+	/**
+	 * A {@link Logger} records information for debug and monitor.
+	 */
+	private static final Logger log = Logger.getLogger(PenceAccount.class.getName());
+
+	/**
+	 * A {@link String} unchangeable account number. It should unique in the system.
+	 */
+	private final String accountNumber;
+
+	/**
+	 * The account balance in pence.
+	 */
+	private final AtomicLong balance;
+
+	/**
+	 * Construct an account with a {@code String} account number.
+	 * @param accountNumber {@link String}
+	 */
+	public PenceAccount(String accountNumber) {
+		this(accountNumber, 0);
+	}
+
+	/**
+	 * Construct an account with a {@code String} account number and balance in pence.
+	 * @param accountNumber {@link String}
+	 * @param balance long balance in pence
+	 */
+	public PenceAccount(String accountNumber, long balance) {
+		this.accountNumber = accountNumber;
+		this.balance = new AtomicLong(balance);
+	}
+
+	/**
+	 * Return pence of amount in pounds, rounded to the nearest penny.
+	 * @param value double amount in pounds
+	 * @return long
+	 */
+	public static long toPence(double value) {
+		return Math.round(value * 100);
+	}
+
+	/**
+	 * Return pounds of amount in pence.
+	 * @param pence long amount in pence
+	 * @return double
+	 */
+	public static double toPounds(long pence) {
+		return pence / 100.0;
+	}
+
+	/**
+	 * Return the account number
+	 * @return {@link String}
+	 */
+	public String getAccountNumber() {
+		return accountNumber;
+	}
+
+	/**
+	 * Return the current balance without lock.
+	 */
+	public double checkBalance() {
+		return toPounds(checkBalancePence());
+	}
+
+	/**
+	 * Return the current balance in pence without lock.
+	 * @return long
+	 */
+	public long checkBalancePence() {
+		final long pence = balance.get();
+		if (log.isLoggable(Level.FINE))
+			log.fine(toString(pence));
+
+		return pence;
+	}
+
+	/**
+	 * Return balance after deposited value amount.
+	 */
+	public double deposit(double value) {
+		return toPounds(depositPence(toPence(value)));
+	}
+
+	/**
+	 * Return balance in pence after deposited pence.
+	 * @param pence long
+	 * @return long
+	 */
+	public long depositPence(long pence) {
+		final long update = balance.addAndGet(pence);
+		if (log.isLoggable(Level.FINE))
+			log.fine(toString(update) + " deposited " + pence);
+
+		return update;
+	}
+
+	public double withdraw(double value) throws OverDrawnException {
+		return toPounds(withdrawPence(toPence(value)));
+	}
+
+	/**
+	 * Return balance in pence after withdrew pence.
+	 * @param pence long
+	 * @return long
+	 * @throws OverDrawnException if pence is greater than balance.
+	 */
+	public long withdrawPence(long pence) throws OverDrawnException {
+		while (true) {
+			final long current = balance.get();
+			if (pence > current)
+				throw new OverDrawnException(toString(current) + " fail to withdraw " + toPounds(pence));
+
+			final long update = current - pence;
+			if (balance.compareAndSet(current, update)) {
+				if (log.isLoggable(Level.FINE))
+					log.fine(toString(update) + " withdrew " + pence);
+
+				return update;
+			}
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(accountNumber);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		final PenceAccount other = (PenceAccount) obj;
+
+		return Objects.equals(accountNumber, other.accountNumber);
+	}
+
+	/**
+	 * Return the information of the instance.
+	 */
+	@Override
+	public String toString() {
+		return toString(balance.get());
+	}
+
+	private String toString(long pence) {
+		return "Account [accountNumber=" + accountNumber + ", balance=" + toPounds(pence) + "]";
+	}
+}
@@ -0,0 +1,86 @@
+package io.gfeng.account;
+
+import java.time.Instant;
+
+import io.gfeng.journal.TransactionJournal;
+
+/**
+ * Transactions of an account returned by a query of {@link TransactionHistory}, oldest first,
+ * in columns of time, type and amount. A statement is a copy, so it does not change when the
+ * account does. Its instance is immutable.
+ *
+ * @author gfeng
+ *
+ */
+public final class Statement {
+	private final long[] times;
+
+	private final byte[] types;
+
+	private final long[] amounts;
+
+	private final boolean complete;
+
+	Statement(final long[] times, final byte[] types, final long[] amounts, final boolean complete) {
+		this.times = times;
+		this.types = types;
+		this.amounts = amounts;
+		this.complete = complete;
+	}
+
+	/**
+	 * Return number of transactions.
+	 * @return int
+	 */
+	public int getCount() {
+		return times.length;
+	}
+
+	/**
+	 * Return time of the transaction at i, in milliseconds since the epoch.
+	 * @param i int
+	 * @return long
+	 */
+	public long getTime(final int i) {
+		return times[i];
+	}
+
+	/**
+	 * Return type of the transaction at i, {@link TransactionJournal#DEPOSIT} or
+	 * {@link TransactionJournal#WITHDRAW}.
+	 * @param i int
+	 * @return byte
+	 */
+	public byte getType(final int i) {
+		return types[i];
+	}
+
+	/**
+	 * Return amount in pence of the transaction at i.
+	 * @param i int
+	 * @return long
+	 */
+	public long getAmount(final int i) {
+		return amounts[i];
+	}
+
+	/**
+	 * Return false if transactions of the query were compacted, so some are not listed.
+	 * @return boolean
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder("Statement [");
+		for (int i = 0; i < times.length; i++) {
+			builder.append(i == 0 ? "" : ", ").append(Instant.ofEpochMilli(times[i]))
+					.append(types[i] == TransactionJournal.DEPOSIT ? " deposit " : " withdraw ")
+					.append(PenceAccount.toPounds(amounts[i]));
+		}
+
+		return builder.append(complete ? "]" : ", ...]").toString();
+	}
+}
@@ -0,0 +1,290 @@
+package io.gfeng.account;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+
+import io.gfeng.journal.TransactionJournal;
+
+/**
+ * An append only history of the deposits and withdrawals of an account, in primitive columns
+ * of time, type and amount, so a transaction costs no object.
+ * <p>
+ * The latest transactions are kept in a ring, which grows from {@link #INITIAL_CAPACITY} to
+ * {@link #MAXIMUM_CAPACITY} entries. Beyond that, the oldest transaction is compacted into the
+ * total withdrawn of its day, and at most {@link #MAXIMUM_DAYS} days are kept, so memory of an
+ * account is bounded however many transactions it has. A column of the running total withdrawn
+ * makes a sum over a range two binary searches and a subtraction.
+ * <p>
+ * Times never go backwards, so queries of a range find their ends by binary search and take
+ * time in proportion to the transactions returned. Days are in the default time zone.
+ * It is not thread safe, and is guarded by the lock of its account.
+ *
+ * @author gfeng
+ *
+ */
+final class TransactionHistory {
+	static final int INITIAL_CAPACITY = 8;
+
+	static final int MAXIMUM_CAPACITY = 1024;
+
+	static final int MAXIMUM_DAYS = 400;
+
+	private static final ZoneId ZONE = ZoneId.systemDefault();
+
+	static final Statement EMPTY = new Statement(new long[0], new byte[0], new long[0], true);
+
+	private long[] times = new long[INITIAL_CAPACITY];
+
+	private byte[] types = new byte[INITIAL_CAPACITY];
+
+	private long[] amounts = new long[INITIAL_CAPACITY];
+
+	/**
+	 * Total withdrawn in pence up to and including each transaction.
+	 */
+	private long[] withdrawn = new long[INITIAL_CAPACITY];
+
+	/**
+	 * Index of the oldest transaction in the ring, and number of transactions in it.
+	 */
+	private int head;
+
+	private int size;
+
+	/**
+	 * Total withdrawn in pence before the oldest transaction in the ring.
+	 */
+	private long baseWithdrawn;
+
+	private long lastTime;
+
+	/**
+	 * Number of transactions compacted, and time of the latest one.
+	 */
+	private long compacted;
+
+	private long lastCompacted;
+
+	/**
+	 * Start of each day compacted, oldest first, and its total withdrawn in pence.
+	 * They are created when the first transaction is compacted.
+	 */
+	private long[] dayStarts;
+
+	private long[] dayWithdrawn;
+
+	private int days;
+
+	/**
+	 * End of the latest day compacted.
+	 */
+	private long dayEnd;
+
+	/**
+	 * Append a transaction.
+	 * @param time long milliseconds since the epoch, raised to the time of the last transaction
+	 * @param type byte {@link TransactionJournal#DEPOSIT} or {@link TransactionJournal#WITHDRAW}
+	 * @param pence long amount
+	 */
+	void append(final long time, final byte type, final long pence) {
+		if (size == times.length) {
+			if (size < MAXIMUM_CAPACITY)
+				grow();
+			else
+				compact();
+		}
+
+		lastTime = Math.max(time, lastTime);
+		final int i = physical(size);
+		times[i] = lastTime;
+		types[i] = type;
+		amounts[i] = pence;
+		withdrawn[i] = totalBefore(size) + (type == TransactionJournal.WITHDRAW ? pence : 0);
+		size++;
+	}
+
+	/**
+	 * Return the last n transactions, or fewer if fewer are kept.
+	 * @param n int
+	 * @return {@link Statement}
+	 */
+	Statement last(final int n) {
+		final int count = Math.min(n, size);
+
+		return copy(size - count, size, count == n || compacted == 0);
+	}
+
+	/**
+	 * Return transactions from time inclusive to time exclusive.
+	 * @param from long
+	 * @param to long
+	 * @return {@link Statement}
+	 */
+	Statement range(final long from, final long to) {
+		final int start = lowerBound(from);
+
+		return copy(start, Math.max(start, lowerBound(to)), compacted == 0 || from > lastCompacted);
+	}
+
+	/**
+	 * Return total withdrawn in pence from time inclusive to time exclusive. Transactions
+	 * compacted count in the range if their day starts in it.
+	 * @param from long
+	 * @param to long
+	 * @return long
+	 */
+	long sumWithdrawn(final long from, final long to) {
+		long sum = 0;
+
+		final int start = lowerBound(from);
+		final int end = lowerBound(to);
+		if (end > start)
+			sum += withdrawn[physical(end - 1)] - totalBefore(start);
+
+		if (days > 0) {
+			for (int d = dayIndex(from); d < days && dayStarts[d] < to; d++) {
+				sum += dayWithdrawn[d];
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Return start of the day of time in milliseconds since the epoch.
+	 * @param time long
+	 * @return long
+	 */
+	static long startOfDay(final long time) {
+		return dayOf(time).toInstant().toEpochMilli();
+	}
+
+	private static ZonedDateTime dayOf(final long time) {
+		return Instant.ofEpochMilli(time).atZone(ZONE).toLocalDate().atStartOfDay(ZONE);
+	}
+
+	/**
+	 * Compact the oldest transaction into its day.
+	 */
+	private void compact() {
+		final long time = times[head];
+		if (types[head] == TransactionJournal.WITHDRAW) {
+			if (days == 0 || time >= dayEnd)
+				addDay(time);
+			dayWithdrawn[days - 1] += amounts[head];
+		}
+
+		baseWithdrawn = withdrawn[head];
+		lastCompacted = time;
+		compacted++;
+		head = physical(1);
+		size--;
+	}
+
+	private void addDay(final long time) {
+		if (dayStarts == null) {
+			dayStarts = new long[INITIAL_CAPACITY];
+			dayWithdrawn = new long[INITIAL_CAPACITY];
+		} else if (days == MAXIMUM_DAYS) {
+			//Drop the oldest day
+			System.arraycopy(dayStarts, 1, dayStarts, 0, days - 1);
+			System.arraycopy(dayWithdrawn, 1, dayWithdrawn, 0, days - 1);
+			days--;
+		} else if (days == dayStarts.length) {
+			dayStarts = Arrays.copyOf(dayStarts, Math.min(days * 2, MAXIMUM_DAYS));
+			dayWithdrawn = Arrays.copyOf(dayWithdrawn, dayStarts.length);
+		}
+
+		final ZonedDateTime start = dayOf(time);
+		dayStarts[days] = start.toInstant().toEpochMilli();
+		dayWithdrawn[days] = 0;
+		dayEnd = start.plusDays(1).toInstant().toEpochMilli();
+		days++;
+	}
+
+	private void grow() {
+		final int capacity = times.length * 2;
+		final byte[] grown = new byte[capacity];
+		for (int k = 0; k < size; k++) {
+			grown[k] = types[physical(k)];
+		}
+
+		types = grown;
+		amounts = unwrap(amounts, capacity);
+		withdrawn = unwrap(withdrawn, capacity);
+		//Times last, because the ring is indexed by its length
+		times = unwrap(times, capacity);
+		head = 0;
+	}
+
+	/**
+	 * Return a column of capacity with the ring in order from 0.
+	 */
+	private long[] unwrap(final long[] column, final int capacity) {
+		final long[] grown = new long[capacity];
+		for (int k = 0; k < size; k++) {
+			grown[k] = column[physical(k)];
+		}
+
+		return grown;
+	}
+
+	/**
+	 * Copy transactions from start inclusive to end exclusive, counted from the oldest.
+	 */
+	private Statement copy(final int start, final int end, final boolean complete) {
+		if (start == end && complete)
+			return EMPTY;
+
+		final long[] copyTimes = new long[end - start];
+		final byte[] copyTypes = new byte[copyTimes.length];
+		final long[] copyAmounts = new long[copyTimes.length];
+		for (int k = start; k < end; k++) {
+			final int i = physical(k);
+			copyTimes[k - start] = times[i];
+			copyTypes[k - start] = types[i];
+			copyAmounts[k - start] = amounts[i];
+		}
+
+		return new Statement(copyTimes, copyTypes, copyAmounts, complete);
+	}
+
+	/**
+	 * Return the first k, counted from the oldest, whose time is at least time, or size.
+	 */
+	private int lowerBound(final long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (times[physical(middle)] < time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Return the first day compacted which starts at time or later, or days.
+	 */
+	private int dayIndex(final long time) {
+		final int d = Arrays.binarySearch(dayStarts, 0, days, time);
+
+		return d >= 0 ? d : -d - 1;
+	}
+
+	/**
+	 * Return total withdrawn before the k-th transaction counted from the oldest.
+	 */
+	private long totalBefore(final int k) {
+		return k == 0 ? baseWithdrawn : withdrawn[physical(k - 1)];
+	}
+
+	private int physical(final int k) {
+		return (head + k) & (times.length - 1);
+	}
+}
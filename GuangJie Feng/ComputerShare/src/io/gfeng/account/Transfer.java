@@ -0,0 +1,48 @@
+package io.gfeng.account;
+
+/**
+ * An immutable request to transfer an amount in pence from an {@link Account} to another, for
+ * {@link TransferService#transferBatch(java.util.List)}.
+ * @author gfeng
+ *
+ */
+public final class Transfer {
+	private final Account from;
+
+	private final Account to;
+
+	private final long pence;
+
+	/**
+	 * Construct a request.
+	 * @param from {@link Account} to withdraw from
+	 * @param to {@link Account} to deposit to
+	 * @param pence long the amount to transfer
+	 * @throws IllegalArgumentException if an account is null, the accounts are the same, or the
+	 * amount is not greater than zero
+	 */
+	public Transfer(Account from, Account to, long pence) {
+		TransferService.check(from, to, pence);
+
+		this.from = from;
+		this.to = to;
+		this.pence = pence;
+	}
+
+	public Account getFrom() {
+		return from;
+	}
+
+	public Account getTo() {
+		return to;
+	}
+
+	public long getPence() {
+		return pence;
+	}
+
+	@Override
+	public String toString() {
+		return "Transfer [from=" + from + ", to=" + to + ", pence=" + pence + "]";
+	}
+}
@@ -0,0 +1,214 @@
+package io.gfeng.account;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import io.gfeng.account.exception.OverDrawnException;
+import io.gfeng.checkpoint.CheckpointEpoch;
+
+/**
+ * Transfers between accounts, which any number of threads can run at once without deadlock.
+ * <p>
+ * A transfer between two {@link AccountImpl} locks both in a global order, the order they were
+ * constructed, so it is atomic and transfers in opposite directions cannot wait for each other.
+ * Transfers between other pairs of accounts run in parallel. A transfer involving any other
+ * {@link Account}, such as the lock free {@link PenceAccount}, withdraws from one and deposits to
+ * the other, each atomic by itself. Money is never lost or made, but a reader may see it in
+ * flight between the two. If the deposit throws, the withdrawal is deposited back.
+ * Either way a transfer pins one {@link CheckpointEpoch}, so a checkpoint has both sides or neither.
+ * <p>
+ * A batch nets the transfers between each pair of accounts in either direction into one, so
+ * a batch of many small payments back and forth costs one transfer per pair. The nets are
+ * run in parallel on a {@link ForkJoinPool}, in no particular order.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class TransferService {
+	/**
+	 * Number of nets below which a task runs them without splitting.
+	 */
+	private static final int GRAIN_NETS = 64;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * The transfers between a pair of accounts in a batch, netted from a to b.
+	 */
+	private static final class Net {
+		private final Account a;
+
+		private final Account b;
+
+		private long pence;
+
+		private boolean done;
+
+		private Net(final Account a, final Account b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public int hashCode() {
+			//The same for either direction
+			return System.identityHashCode(a) ^ System.identityHashCode(b);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Net))
+				return false;
+			final Net other = (Net) obj;
+
+			return (a == other.a && b == other.b) || (a == other.b && b == other.a);
+		}
+	}
+
+	/**
+	 * Construct a service on the common pool.
+	 */
+	public TransferService() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Construct a service.
+	 * @param pool {@link ForkJoinPool} to run the nets of a batch
+	 */
+	public TransferService(final ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Transfer an amount from an account to another, and return balance of from after it.
+	 * @param from {@link Account} to withdraw from
+	 * @param to {@link Account} to deposit to
+	 * @param pence long the amount to transfer
+	 * @return double
+	 * @throws OverDrawnException if from cannot cover the amount, and nothing is transferred
+	 * @throws IllegalArgumentException if an account is null, the accounts are the same, or the
+	 * amount is not greater than zero
+	 */
+	public double transfer(final Account from, final Account to, final long pence) throws OverDrawnException {
+		check(from, to, pence);
+
+		return apply(from, to, pence);
+	}
+
+	/**
+	 * Net and run transfers, and return whether each of them is done. The transfers between a
+	 * pair of accounts are done or rejected together, by whether the net of them is covered.
+	 * Nets of different pairs run in no particular order, so a net may be rejected which would
+	 * be covered after another.
+	 * @param transfers {@link List} of {@link Transfer}
+	 * @return boolean[] in the order of transfers
+	 */
+	public boolean[] transferBatch(final List<Transfer> transfers) {
+		final Map<Net, Net> pairs = new HashMap<>();
+		final List<Net> nets = new ArrayList<>();
+		final Net[] netOf = new Net[transfers.size()];
+
+		for (int i = 0; i < netOf.length; i++) {
+			final Transfer transfer = transfers.get(i);
+			final Net key = new Net(transfer.getFrom(), transfer.getTo());
+			Net net = pairs.get(key);
+			if (net == null) {
+				net = key;
+				pairs.put(key, net);
+				nets.add(net);
+			}
+
+			net.pence += net.a == transfer.getFrom() ? transfer.getPence() : -transfer.getPence();
+			netOf[i] = net;
+		}
+
+		pool.invoke(new Nets(nets, 0, nets.size()));
+
+		final boolean[] done = new boolean[netOf.length];
+		for (int i = 0; i < done.length; i++) {
+			done[i] = netOf[i].done;
+		}
+
+		return done;
+	}
+
+	/**
+	 * Nets from {@code from} to {@code to}.
+	 */
+	private final class Nets extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Net> nets;
+
+		private final int from;
+
+		private final int to;
+
+		private Nets(final List<Net> nets, final int from, final int to) {
+			this.nets = nets;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > GRAIN_NETS) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new Nets(nets, from, middle), new Nets(nets, middle, to));
+				return;
+			}
+
+			for (int k = from; k < to; k++) {
+				final Net net = nets.get(k);
+				try {
+					if (net.pence > 0)
+						apply(net.a, net.b, net.pence);
+					else if (net.pence < 0)
+						apply(net.b, net.a, -net.pence);
+					net.done = true;
+				} catch (OverDrawnException e) {
+					net.done = false;
+				}
+			}
+		}
+	}
+
+	private static double apply(final Account from, final Account to, final long pence) throws OverDrawnException {
+		final double value = PenceAccount.toPounds(pence);
+		if (from instanceof AccountImpl && to instanceof AccountImpl)
+			return AccountImpl.transfer((AccountImpl) from, (AccountImpl) to, value);
+
+		CheckpointEpoch.enter();
+		try {
+			final double update = from.withdraw(value);
+			try {
+				to.deposit(value);
+			} catch (RuntimeException | Error e) {
+				from.deposit(value);
+				throw e;
+			}
+
+			return update;
+		} finally {
+			CheckpointEpoch.exit();
+		}
+	}
+
+	/**
+	 * Check the accounts and amount of a transfer.
+	 */
+	static void check(final Account from, final Account to, final long pence) {
+		if (from == null || to == null)
+			throw new IllegalArgumentException("Please input valid accounts");
+		if (from == to || from.equals(to))
+			throw new IllegalArgumentException("Cannot transfer from " + from + " to itself");
+		if (pence <= 0)
+			throw new IllegalArgumentException("Transfer " + pence + " should be greater than zero");
+	}
+}
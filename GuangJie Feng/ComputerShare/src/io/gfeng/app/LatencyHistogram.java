@@ -0,0 +1,105 @@
+package io.gfeng.app;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds. Each power of 2 is split into 64
+ * buckets, so a recorded value is within 1/64 of its bucket. Recording is an array increment
+ * without allocation or synchronization, so each thread records into its own histogram and
+ * histograms are merged at the end.
+ * Its instance is not thread safe.
+ *
+ * @author gfeng
+ *
+ */
+final class LatencyHistogram {
+	/**
+	 * Number of bits of the linear buckets in each power of 2.
+	 */
+	private static final int SUB_BITS = 6;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final long[] counts = new long[(Long.SIZE - SUB_BITS + 1) << SUB_BITS];
+
+	private long total;
+
+	private long max;
+
+	/**
+	 * Record a latency.
+	 * @param nanos long
+	 */
+	void record(final long nanos) {
+		final long value = nanos < 0 ? 0 : nanos;
+		counts[indexOf(value)]++;
+		total++;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Add counts of other histogram to this one.
+	 * @param other {@link LatencyHistogram}
+	 */
+	void add(final LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Return number of latencies recorded.
+	 * @return long
+	 */
+	long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Return the largest latency recorded in nanoseconds.
+	 * @return long
+	 */
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * Return the latency in nanoseconds at percentile, for example 99.9.
+	 * @param percentile double between 0 and 100
+	 * @return long the middle of the bucket, 0 if nothing is recorded
+	 */
+	long getPercentile(final double percentile) {
+		if (total == 0)
+			return 0;
+
+		final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(max, middleOf(i));
+		}
+
+		return max;
+	}
+
+	private static int indexOf(final long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		final int shift = Long.SIZE - SUB_BITS - 1 - Long.numberOfLeadingZeros(value);
+
+		return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long middleOf(final int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+
+		final int shift = (index >>> SUB_BITS) - 1;
+		final long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+
+		return lowest + ((1L << shift) >>> 1);
+	}
+}
@@ -0,0 +1,234 @@
+package io.gfeng.app;
+
+import static java.lang.System.out;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.gfeng.account.Account;
+import io.gfeng.account.AccountImpl;
+import io.gfeng.app.exception.WrongNumberFormatException;
+import io.gfeng.cash.CashMachine;
+import io.gfeng.cash.WithdrawResult;
+import io.gfeng.cash.WithdrawStatus;
+
+/**
+ * Drives withdrawals from many threads against one {@link CashMachine} and many accounts for
+ * a period, and reports throughput, latency percentiles and number of each rejection.
+ * It withdraws by {@link CashMachine#tryWithdraw(Account, int)}, so rejections cost no exception.
+ * <p>
+ * Workers run on virtual threads when the Java runtime has them, otherwise on a fixed pool of
+ * platform threads. Each worker records into its own {@link LatencyHistogram} and counters,
+ * which are merged when the period ends, so workers share nothing but the cash machine and
+ * the accounts.
+ * <p>
+ * Accounts are {@link AccountImpl} by default, or opened by a function, so other account
+ * implementations can be compared under the same load.
+ *
+ * @author gfeng
+ *
+ */
+final class LoadGenerator {
+	/**
+	 * Amount deposited to each account before the load.
+	 */
+	private static final double DEPOSIT = 1000000;
+
+	/**
+	 * Result of a worker.
+	 */
+	private static final class Recorder {
+		private final LatencyHistogram histogram = new LatencyHistogram();
+
+		/**
+		 * Number of each {@link WithdrawStatus}, indexed by its ordinal.
+		 */
+		private final long[] statuses = new long[WithdrawStatus.values().length];
+	}
+
+	private final CashMachine cashMachine;
+
+	private final Account[] accounts;
+
+	/**
+	 * Withdrawals to draw from uniformly. A weighted amount is repeated by its weight.
+	 */
+	private final int[] amounts;
+
+	private final String distribution;
+
+	private final int threads;
+
+	private final int seconds;
+
+	/**
+	 * Construct a load on a cash machine.
+	 * @param cashMachine {@link CashMachine} filled in with notes
+	 * @param threads int number of concurrent workers
+	 * @param seconds int duration of the load
+	 * @param accounts int number of accounts
+	 * @param distribution {@link String} amount distribution, see {@link #parseAmounts(String)}
+	 * @throws WrongNumberFormatException if the distribution is invalid
+	 */
+	LoadGenerator(final CashMachine cashMachine, final int threads, final int seconds,
+			final int accounts, final String distribution) throws WrongNumberFormatException {
+		this(cashMachine, threads, seconds, accounts, distribution, AccountImpl::new);
+	}
+
+	/**
+	 * Construct a load on a cash machine and accounts opened by a function.
+	 * @param cashMachine {@link CashMachine} filled in with notes
+	 * @param threads int number of concurrent workers
+	 * @param seconds int duration of the load
+	 * @param accounts int number of accounts
+	 * @param distribution {@link String} amount distribution, see {@link #parseAmounts(String)}
+	 * @param open {@link Function} from account number to a new {@link Account}
+	 * @throws WrongNumberFormatException if the distribution is invalid
+	 */
+	LoadGenerator(final CashMachine cashMachine, final int threads, final int seconds,
+			final int accounts, final String distribution, final Function<String, Account> open)
+			throws WrongNumberFormatException {
+		this.cashMachine = cashMachine;
+		this.threads = threads;
+		this.seconds = seconds;
+		this.distribution = distribution;
+		this.amounts = parseAmounts(distribution);
+		this.accounts = new Account[accounts];
+		for (int i = 0; i < accounts; i++) {
+			this.accounts[i] = open.apply(String.format("%05d", i));
+			this.accounts[i].deposit(DEPOSIT);
+		}
+	}
+
+	/**
+	 * Parse amount distribution. It is "uniform" for withdrawals from 20 to 250 in multiples
+	 * of 5, or comma separated amounts with optional weights, for example "20:5,50:3,100".
+	 * @param distribution {@link String}
+	 * @return int[] amounts to draw from uniformly
+	 * @throws WrongNumberFormatException
+	 */
+	static int[] parseAmounts(final String distribution) throws WrongNumberFormatException {
+		final List<Integer> amounts = new ArrayList<>();
+		if (distribution.equals("uniform")) {
+			for (int amount = 20; amount <= 250; amount += 5) {
+				amounts.add(amount);
+			}
+		} else {
+			for (String item : distribution.split(",")) {
+				final String[] pair = item.split(":");
+				try {
+					final int amount = Integer.parseInt(pair[0].trim());
+					final int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+					if (pair.length > 2 || amount <= 0 || weight <= 0 || weight > 1000)
+						throw new NumberFormatException(item);
+					for (int i = 0; i < weight; i++) {
+						amounts.add(amount);
+					}
+				} catch (NumberFormatException e) {
+					throw new WrongNumberFormatException("amounts " + distribution
+							+ " is not \"uniform\" or in format 20:5,50:3,100");
+				}
+			}
+		}
+
+		final int[] table = new int[amounts.size()];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = amounts.get(i);
+		}
+
+		return table;
+	}
+
+	/**
+	 * Run the load, and print the report.
+	 * @throws ExecutionException if a worker failed
+	 * @throws InterruptedException
+	 */
+	void run() throws InterruptedException, ExecutionException {
+		final boolean[] virtual = new boolean[1];
+		final ExecutorService executor = newExecutor(virtual);
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+		out.println("Load " + cashMachine);
+		out.println("threads " + threads + (virtual[0] ? " virtual" : " platform") + ", duration "
+				+ seconds + "s, accounts " + accounts.length + " " + accounts[0].getClass().getSimpleName()
+				+ ", amounts " + distribution);
+
+		final long start = System.nanoTime();
+		final List<Future<Recorder>> futures = new ArrayList<>(threads);
+		for (int t = 0; t < threads; t++) {
+			futures.add(executor.submit(() -> work(deadline)));
+		}
+
+		final Recorder total = new Recorder();
+		for (Future<Recorder> future : futures) {
+			final Recorder recorder = future.get();
+			total.histogram.add(recorder.histogram);
+			for (int i = 0; i < total.statuses.length; i++) {
+				total.statuses[i] += recorder.statuses[i];
+			}
+		}
+		final long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		report(total, elapsed);
+	}
+
+	private Recorder work(final long deadline) {
+		final Recorder recorder = new Recorder();
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		while (System.nanoTime() < deadline) {
+			final Account account = accounts[random.nextInt(accounts.length)];
+			final int withdrawal = amounts[random.nextInt(amounts.length)];
+
+			final long begin = System.nanoTime();
+			final WithdrawResult result = cashMachine.tryWithdraw(account, withdrawal);
+			recorder.histogram.record(System.nanoTime() - begin);
+			recorder.statuses[result.getStatus().ordinal()]++;
+		}
+
+		return recorder;
+	}
+
+	private void report(final Recorder total, final long elapsed) {
+		final LatencyHistogram histogram = total.histogram;
+		final double secondsElapsed = elapsed / 1e9;
+
+		out.printf("requests %d, withdrawals %d, throughput %.0f requests/s%n", histogram.getTotal(),
+				total.statuses[WithdrawStatus.SUCCESS.ordinal()], histogram.getTotal() / secondsElapsed);
+		out.printf("latency us p50 %.2f, p99 %.2f, p999 %.2f, max %.2f%n",
+				histogram.getPercentile(50) / 1e3, histogram.getPercentile(99) / 1e3,
+				histogram.getPercentile(99.9) / 1e3, histogram.getMax() / 1e3);
+
+		out.println("rejections");
+		for (WithdrawStatus status : WithdrawStatus.values()) {
+			if (status != WithdrawStatus.SUCCESS && total.statuses[status.ordinal()] != 0)
+				out.println("    " + status + " " + total.statuses[status.ordinal()]);
+		}
+		out.println("After load " + cashMachine);
+	}
+
+	/**
+	 * Return an executor of a virtual thread per task if the runtime has virtual threads,
+	 * otherwise a pool of platform threads.
+	 */
+	private ExecutorService newExecutor(final boolean[] virtual) {
+		try {
+			final ExecutorService executor = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			virtual[0] = true;
+
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+}
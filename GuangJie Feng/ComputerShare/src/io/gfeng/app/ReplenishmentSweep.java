@@ -0,0 +1,125 @@
+package io.gfeng.app;
+
+import static java.lang.System.out;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import io.gfeng.app.exception.WrongNumberFormatException;
+import io.gfeng.cash.ReplenishmentSimulator;
+import io.gfeng.cash.SimulationOutcome;
+
+/**
+ * Sweeps note loads by {@link ReplenishmentSimulator}, and prints the loads of the lowest rate
+ * of withdrawals which cannot be disbursed, then of the least cash.
+ *
+ * @author gfeng
+ *
+ */
+final class ReplenishmentSweep {
+	private final List<int[]> loads;
+
+	private final String range;
+
+	private final String distribution;
+
+	private final int trials;
+
+	private final int horizon;
+
+	private final int top;
+
+	/**
+	 * Construct a sweep of loads.
+	 * @param range {@link String} loads to sweep, see {@link #parseLoads(String)}
+	 * @param distribution {@link String} amount distribution, see {@link LoadGenerator#parseAmounts(String)}
+	 * @param trials int number of trials of each load
+	 * @param horizon int number of withdrawals in each trial
+	 * @param top int number of loads to print
+	 * @throws WrongNumberFormatException if the range is invalid
+	 */
+	ReplenishmentSweep(final String range, final String distribution, final int trials,
+			final int horizon, final int top) throws WrongNumberFormatException {
+		this.range = range;
+		this.loads = parseLoads(range);
+		this.distribution = distribution;
+		this.trials = trials;
+		this.horizon = horizon;
+		this.top = top;
+	}
+
+	/**
+	 * Parse loads of notes 5, 10, 20 and 50 separated by "/". Each is a number, or a range
+	 * "from:to:step", for example "500:3000:500/1000/500:2000:500/1000". Every combination
+	 * is a load.
+	 * @param range {@link String}
+	 * @return {@link List} of loads
+	 * @throws WrongNumberFormatException
+	 */
+	static List<int[]> parseLoads(final String range) throws WrongNumberFormatException {
+		final String[] notes = range.split("/");
+		if (notes.length != 4)
+			throw new WrongNumberFormatException("loads " + range + " is not 4 ranges separated by /");
+
+		final int[][] counts = new int[notes.length][];
+		for (int i = 0; i < notes.length; i++) {
+			final String[] triple = notes[i].split(":");
+			try {
+				final int from = Integer.parseInt(triple[0].trim());
+				final int to = triple.length > 1 ? Integer.parseInt(triple[1].trim()) : from;
+				final int step = triple.length > 2 ? Integer.parseInt(triple[2].trim()) : 1;
+				if (triple.length > 3 || from < 0 || to < from || step <= 0 || (to - from) / step >= 1000)
+					throw new NumberFormatException(notes[i]);
+
+				counts[i] = new int[(to - from) / step + 1];
+				for (int c = 0; c < counts[i].length; c++) {
+					counts[i][c] = from + c * step;
+				}
+			} catch (NumberFormatException e) {
+				throw new WrongNumberFormatException("loads " + range
+						+ " is not in format 500:3000:500/1000/500:2000:500/1000");
+			}
+		}
+
+		final List<int[]> loads = new ArrayList<>();
+		for (int a : counts[0]) {
+			for (int b : counts[1]) {
+				for (int c : counts[2]) {
+					for (int d : counts[3]) {
+						loads.add(new int[] {a, b, c, d});
+					}
+				}
+			}
+		}
+
+		if (loads.size() > 1000000)
+			throw new WrongNumberFormatException("loads " + range + " has more than 1000000 loads");
+
+		return loads;
+	}
+
+	/**
+	 * Run the sweep, and print the report.
+	 * @throws WrongNumberFormatException if the distribution is invalid
+	 */
+	void run() throws WrongNumberFormatException {
+		final ReplenishmentSimulator simulator = new ReplenishmentSimulator(
+				LoadGenerator.parseAmounts(distribution), false);
+
+		out.println("Simulate loads " + range + ", " + loads.size() + " loads, trials " + trials
+				+ ", withdrawals " + horizon + ", amounts " + distribution);
+
+		final long start = System.nanoTime();
+		final List<SimulationOutcome> outcomes = new ArrayList<>(simulator.run(loads, trials, horizon, 1L));
+		final double seconds = (System.nanoTime() - start) / 1e9;
+
+		out.printf("simulated %d withdrawals in %.2fs%n", (long) loads.size() * trials * horizon, seconds);
+
+		outcomes.sort(Comparator.comparingDouble(SimulationOutcome::getCannotDisburseRate)
+				.thenComparingLong(SimulationOutcome::getCash));
+		for (int i = 0; i < Math.min(top, outcomes.size()); i++) {
+			out.println("    cash " + outcomes.get(i).getCash() + " " + outcomes.get(i));
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package io.gfeng.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Parses a file of transaction records by mapping it into memory, without copying its bytes
+ * or creating objects per record. A record is a line
+ * <pre>
+ * D,{account},{amount}    deposit, for example D,01001,1893.28
+ * W,{account},{amount}    withdrawal, for example W,01001,185
+ * </pre>
+ * The amount has at most 2 decimals, and is read straight into pence. Blank lines and lines
+ * starting with # are skipped. A line which is not a record is reported as malformed.
+ * <p>
+ * The file is mapped in windows of 256MB, so a file of any size is read with bounded
+ * address space. A line across two windows is read from the start of the next window.
+ *
+ * @author gfeng
+ *
+ */
+final class TransactionFileParser {
+	/**
+	 * Receives records in the order of the file. The account number is the bytes of the buffer
+	 * from start, which are valid only during the call.
+	 */
+	interface Listener {
+		/**
+		 * A deposit record.
+		 * @param buffer {@link ByteBuffer} of the file
+		 * @param accountStart int index of the account number in buffer
+		 * @param accountLength int length of the account number
+		 * @param pence long amount in pence
+		 */
+		void onDeposit(ByteBuffer buffer, int accountStart, int accountLength, long pence);
+
+		/**
+		 * A withdrawal record.
+		 * @param buffer {@link ByteBuffer} of the file
+		 * @param accountStart int index of the account number in buffer
+		 * @param accountLength int length of the account number
+		 * @param pence long amount in pence
+		 */
+		void onWithdraw(ByteBuffer buffer, int accountStart, int accountLength, long pence);
+
+		/**
+		 * A line which is not a record.
+		 * @param line long number of the line from 1
+		 */
+		void onMalformed(long line);
+	}
+
+	/**
+	 * The longest account number.
+	 */
+	static final int MAXIMUM_ACCOUNT = 64;
+
+	/**
+	 * Size of a window of the file mapped into memory.
+	 */
+	private static final long WINDOW = 1 << 28;
+
+	/**
+	 * The most digits of pounds, so pence do not overflow.
+	 */
+	private static final int MAXIMUM_DIGITS = 15;
+
+	private TransactionFileParser() {
+	}
+
+	/**
+	 * Parse the file, and return number of lines.
+	 * @param file {@link Path}
+	 * @param listener {@link Listener}
+	 * @return long
+	 * @throws IOException if the file cannot be read, or a line is longer than a window
+	 */
+	static long parse(final Path file, final Listener listener) throws IOException {
+		long lines = 0;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			long base = 0;
+
+			while (base < size) {
+				final int limit = (int) Math.min(WINDOW, size - base);
+				final boolean last = base + limit == size;
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, limit);
+
+				int start = 0;
+				while (start < limit) {
+					int end = start;
+					while (end < limit && buffer.get(end) != '\n') {
+						end++;
+					}
+					//A line without end is read again from the next window
+					if (end == limit && !last)
+						break;
+
+					lines++;
+					parseLine(buffer, start, end, lines, listener);
+					start = end + 1;
+				}
+
+				if (start == 0 && !last)
+					throw new IOException("Line " + (lines + 1) + " of " + file + " is longer than " + WINDOW);
+				base += Math.min(start, limit);
+			}
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Parse the line from start to end, exclusive of the line feed.
+	 */
+	private static void parseLine(final ByteBuffer buffer, final int start, int end, final long line,
+			final Listener listener) {
+		if (end > start && buffer.get(end - 1) == '\r')
+			end--;
+		if (end == start || buffer.get(start) == '#')
+			return;
+
+		final byte type = buffer.get(start);
+		if ((type != 'D' && type != 'W') || end - start < 2 || buffer.get(start + 1) != ',') {
+			listener.onMalformed(line);
+			return;
+		}
+
+		final int accountStart = start + 2;
+		int p = accountStart;
+		while (p < end && buffer.get(p) != ',') {
+			p++;
+		}
+		final int accountLength = p - accountStart;
+		if (p == end || accountLength == 0 || accountLength > MAXIMUM_ACCOUNT) {
+			listener.onMalformed(line);
+			return;
+		}
+
+		//Pounds, then at most 2 decimals of pence
+		p++;
+		long pence = 0;
+		int digits = 0;
+		while (p < end && isDigit(buffer.get(p)) && digits <= MAXIMUM_DIGITS) {
+			pence = pence * 10 + buffer.get(p++) - '0';
+			digits++;
+		}
+		pence *= 100;
+
+		if (p < end && buffer.get(p) == '.') {
+			p++;
+			if (p < end && isDigit(buffer.get(p)))
+				pence += (buffer.get(p++) - '0') * 10;
+			else
+				digits = 0;
+			if (p < end && isDigit(buffer.get(p)))
+				pence += buffer.get(p++) - '0';
+		}
+
+		if (digits == 0 || digits > MAXIMUM_DIGITS || p != end) {
+			listener.onMalformed(line);
+			return;
+		}
+
+		if (type == 'D')
+			listener.onDeposit(buffer, accountStart, accountLength, pence);
+		else
+			listener.onWithdraw(buffer, accountStart, accountLength, pence);
+	}
+
+	private static boolean isDigit(final byte b) {
+		return b >= '0' && b <= '9';
+	}
+}
@@ -0,0 +1,211 @@
+package io.gfeng.app;
+
+import static java.lang.System.out;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import io.gfeng.account.PenceAccount;
+import io.gfeng.cash.CashMachine;
+import io.gfeng.cash.WithdrawStatus;
+
+/**
+ * Replays a file of deposits and withdrawals, see {@link TransactionFileParser}, through one
+ * {@link CashMachine} and its accounts, and prints a summary.
+ * <p>
+ * Accounts are {@link PenceAccount}s opened by their first deposit, so amounts stay in pence
+ * from the file to the balance. They are found by the bytes of the account number in the
+ * mapped file, so a record creates no object unless it opens an account. A withdrawal from an
+ * account which is not open is counted as unknown.
+ * Its instance is not thread safe.
+ *
+ * @author gfeng
+ *
+ */
+final class TransactionReplay implements TransactionFileParser.Listener {
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	private final CashMachine cashMachine;
+
+	/**
+	 * Open addressing table of accounts by account number, with linear probing.
+	 */
+	private byte[][] keys = new byte[INITIAL_CAPACITY][];
+
+	private int[] hashes = new int[INITIAL_CAPACITY];
+
+	private PenceAccount[] accounts = new PenceAccount[INITIAL_CAPACITY];
+
+	private int size;
+
+	private long deposits;
+
+	private long penceDeposited;
+
+	private long penceWithdrawn;
+
+	private long unknown;
+
+	private long malformed;
+
+	/**
+	 * Number of each {@link WithdrawStatus}, indexed by its ordinal.
+	 */
+	private final long[] statuses = new long[WithdrawStatus.values().length];
+
+	/**
+	 * Construct a replay.
+	 * @param cashMachine {@link CashMachine} filled in with notes
+	 */
+	TransactionReplay(final CashMachine cashMachine) {
+		this.cashMachine = cashMachine;
+	}
+
+	/**
+	 * Replay the file, and print the summary.
+	 * @param file {@link Path}
+	 * @throws IOException if the file cannot be read
+	 */
+	void run(final Path file) throws IOException {
+		out.println("Replay " + file + " on " + cashMachine);
+
+		final long start = System.nanoTime();
+		final long lines = TransactionFileParser.parse(file, this);
+		final long elapsed = System.nanoTime() - start;
+
+		report(lines, elapsed);
+	}
+
+	@Override
+	public void onDeposit(final ByteBuffer buffer, final int accountStart, final int accountLength,
+			final long pence) {
+		find(buffer, accountStart, accountLength, true).depositPence(pence);
+		deposits++;
+		penceDeposited += pence;
+	}
+
+	@Override
+	public void onWithdraw(final ByteBuffer buffer, final int accountStart, final int accountLength,
+			final long pence) {
+		//The cash machine withdraws whole pounds only
+		if (pence % 100 != 0) {
+			malformed++;
+			return;
+		}
+
+		final PenceAccount account = find(buffer, accountStart, accountLength, false);
+		if (account == null) {
+			unknown++;
+			return;
+		}
+
+		final int withdrawal = (int) Math.min(Integer.MAX_VALUE, pence / 100);
+		final WithdrawStatus status = cashMachine.tryWithdraw(account, withdrawal).getStatus();
+		statuses[status.ordinal()]++;
+		if (status == WithdrawStatus.SUCCESS)
+			penceWithdrawn += pence;
+	}
+
+	@Override
+	public void onMalformed(final long line) {
+		malformed++;
+	}
+
+	/**
+	 * Return the account of the account number in buffer, opened if create is true, otherwise
+	 * null if it is not open.
+	 */
+	private PenceAccount find(final ByteBuffer buffer, final int start, final int length, final boolean create) {
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + buffer.get(start + i);
+		}
+		hash ^= hash >>> 16;
+
+		final int mask = keys.length - 1;
+		int slot = hash & mask;
+		for (; keys[slot] != null; slot = (slot + 1) & mask) {
+			if (hashes[slot] == hash && matches(keys[slot], buffer, start, length))
+				return accounts[slot];
+		}
+		if (!create)
+			return null;
+
+		final byte[] key = new byte[length];
+		for (int i = 0; i < length; i++) {
+			key[i] = buffer.get(start + i);
+		}
+		final PenceAccount account = new PenceAccount(new String(key, StandardCharsets.US_ASCII));
+		keys[slot] = key;
+		hashes[slot] = hash;
+		accounts[slot] = account;
+
+		//Keep the table at most half full
+		if (++size * 2 > keys.length)
+			resize();
+
+		return account;
+	}
+
+	private static boolean matches(final byte[] key, final ByteBuffer buffer, final int start, final int length) {
+		if (key.length != length)
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if (key[i] != buffer.get(start + i))
+				return false;
+		}
+
+		return true;
+	}
+
+	private void resize() {
+		final byte[][] oldKeys = keys;
+		final int[] oldHashes = hashes;
+		final PenceAccount[] oldAccounts = accounts;
+
+		keys = new byte[oldKeys.length * 2][];
+		hashes = new int[keys.length];
+		accounts = new PenceAccount[keys.length];
+
+		final int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == null)
+				continue;
+
+			int slot = oldHashes[i] & mask;
+			while (keys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = oldKeys[i];
+			hashes[slot] = oldHashes[i];
+			accounts[slot] = oldAccounts[i];
+		}
+	}
+
+	private void report(final long lines, final long elapsed) {
+		long withdrawals = 0;
+		for (long count : statuses) {
+			withdrawals += count;
+		}
+		final long records = deposits + withdrawals + unknown;
+
+		out.printf("lines %d, records %d, malformed %d, elapsed %.3fs, throughput %.0f records/s%n",
+				lines, records, malformed, elapsed / 1e9, records / (elapsed / 1e9));
+		out.printf("accounts %d, deposits %d of %d.%02d%n", size, deposits,
+				penceDeposited / 100, penceDeposited % 100);
+		out.printf("withdrawals %d, disbursed %d of %d.%02d%n", withdrawals,
+				statuses[WithdrawStatus.SUCCESS.ordinal()], penceWithdrawn / 100, penceWithdrawn % 100);
+
+		out.println("rejections");
+		for (WithdrawStatus status : WithdrawStatus.values()) {
+			if (status != WithdrawStatus.SUCCESS && statuses[status.ordinal()] != 0)
+				out.println("    " + status + " " + statuses[status.ordinal()]);
+		}
+		if (unknown != 0)
+			out.println("    UNKNOWN_ACCOUNT " + unknown);
+		out.println("After replay " + cashMachine);
+	}
+}
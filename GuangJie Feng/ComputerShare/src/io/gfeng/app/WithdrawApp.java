@@ -2,25 +2,56 @@ package io.gfeng.app;
 
 import static java.lang.System.out;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
+
 import io.gfeng.account.Account;
 import io.gfeng.account.AccountImpl;
+import io.gfeng.account.AccountMetrics;
+import io.gfeng.account.PartitionedAccounts;
 import io.gfeng.app.exception.WrongNumberFormatException;
 import io.gfeng.cash.CashMachine;
 import io.gfeng.cash.CashMachineImpl;
+import io.gfeng.cash.Disbursement;
+import io.gfeng.cash.WithdrawResult;
+import io.gfeng.cash.WithdrawStatus;
 import io.gfeng.cash.exception.CannotDisburseException;
 import io.gfeng.cash.exception.HigherThanMaximumException;
 import io.gfeng.cash.exception.LowBalanceException;
 import io.gfeng.cash.exception.LowThanMinimalException;
+import io.gfeng.checkpoint.CheckpointImage;
+import io.gfeng.checkpoint.CheckpointWriter;
+import io.gfeng.server.WithdrawServer;
+import io.gfeng.trace.OperationTracer;
 
 public final class WithdrawApp {
+	/**
+	 * Number of events the tracer holds before it drops.
+	 */
+	private static final int TRACE_CAPACITY = 1 << 16;
+	
+	private static final Pattern WITHDRAWAL = Pattern.compile("\\d*?[05]");
+	
+	private static final Pattern DEPOSIT = Pattern.compile("\\d+(\\.\\d{0,2})?");
+	
 	public static void main(String[] args) throws LowThanMinimalException, 
 			HigherThanMaximumException, LowBalanceException, CannotDisburseException, 
-			WrongNumberFormatException {
+			WrongNumberFormatException, InterruptedException, ExecutionException, JMException, IOException {
 		
 		if (args.length == 0) {
 			printHelp();
@@ -30,8 +61,29 @@ public final class WithdrawApp {
 		double deposit = -1;
 		int withdrawal = -1;
 		
+		boolean load = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int duration = 10;
+		int accounts = 1000;
+		int notes = 0;
+		String amounts = "uniform";
+		int partitions = 0;
+		
+		boolean simulate = false;
+		String loads = "500:3000:500/500:3000:500/500:3000:500/500:3000:500";
+		int trials = 20;
+		int horizon = 10000;
+		int top = 20;
+		
+		boolean serve = false;
+		int port = 7070;
+		String checkpoint = null;
+		int interval = 60;
+		
+		String replay = null;
+		
 		// Set up cash machine fill in notes.
-		final CashMachine cashMachine = new CashMachineImpl("cashmachine-001");
+		final CashMachineImpl cashMachine = new CashMachineImpl("cashmachine-001");
 		cashMachine.addNoteToCashMachine(5, 3000);
 		cashMachine.addNoteToCashMachine(10, 1000);
 		cashMachine.addNoteToCashMachine(20, 2000);
@@ -44,8 +96,7 @@ public final class WithdrawApp {
 			if (args[i].equals("-withdrawal")) {
 				final String wdl = args[++i];
 				
-				final Pattern p = Pattern.compile("\\d*?[05]");
-				final Matcher m = p.matcher(wdl);
+				final Matcher m = WITHDRAWAL.matcher(wdl);
 				
 				if(m.matches()) {
 					withdrawal = Integer.parseInt(wdl);
@@ -56,8 +107,7 @@ public final class WithdrawApp {
 			} else if(args[i].equals("-deposit")) {
 				final String dep = args[++i];
 				
-				final Pattern p = Pattern.compile("\\d+(\\.\\d{0,2})?");
-				final Matcher m = p.matcher(dep);
+				final Matcher m = DEPOSIT.matcher(dep);
 				
 				if(m.matches()) {
 					deposit = Double.parseDouble(dep);
@@ -73,12 +123,119 @@ public final class WithdrawApp {
 				testThough(account, cashMachine);
 				
 				System.exit(0);
+			} else if(args[i].equals("-trace")) {
+				final OperationTracer tracer = OperationTracer.start(new OutputStreamWriter(System.err), TRACE_CAPACITY);
+				//Write the events left when the application exits
+				Runtime.getRuntime().addShutdownHook(new Thread(tracer::close));
+			} else if(args[i].equals("-load")) {
+				load = true;
+			} else if(args[i].equals("-threads")) {
+				threads = parseCount("threads", args[++i]);
+			} else if(args[i].equals("-duration")) {
+				duration = parseCount("duration", args[++i]);
+			} else if(args[i].equals("-accounts")) {
+				accounts = parseCount("accounts", args[++i]);
+			} else if(args[i].equals("-notes")) {
+				notes = parseCount("notes", args[++i]);
+			} else if(args[i].equals("-amounts")) {
+				amounts = args[++i];
+			} else if(args[i].equals("-partitions")) {
+				partitions = parseCount("partitions", args[++i]);
+			} else if(args[i].equals("-simulate")) {
+				simulate = true;
+			} else if(args[i].equals("-loads")) {
+				loads = args[++i];
+			} else if(args[i].equals("-trials")) {
+				trials = parseCount("trials", args[++i]);
+			} else if(args[i].equals("-horizon")) {
+				horizon = parseCount("horizon", args[++i]);
+			} else if(args[i].equals("-top")) {
+				top = parseCount("top", args[++i]);
+			} else if(args[i].equals("-serve")) {
+				serve = true;
+			} else if(args[i].equals("-port")) {
+				port = parseCount("port", args[++i]);
+			} else if(args[i].equals("-checkpoint")) {
+				checkpoint = args[++i];
+			} else if(args[i].equals("-interval")) {
+				interval = parseCount("interval", args[++i]);
+			} else if(args[i].equals("-replay")) {
+				replay = args[++i];
 			} else if(args[i].equals("-h") || args[i].equals("-help")) {
 				printHelp();
 				System.exit(0);
 			}
 		}
 		
+		if (serve) {
+			//Restore notes and accounts of the last checkpoint, accounts when they are first used
+			final CheckpointImage image = checkpoint != null && Files.exists(Paths.get(checkpoint))
+					? CheckpointImage.open(Paths.get(checkpoint)) : null;
+			final CashMachineImpl restored = image == null ? null : image.restoreMachine(cashMachine.getId(), null);
+			final CashMachineImpl served = restored == null ? cashMachine : restored;
+			if (image != null)
+				out.println("Restore " + image);
+			
+			for (int note : new int[] {5, 10, 20, 50}) {
+				served.addNoteToCashMachine(note, notes);
+			}
+			served.getMetrics().register();
+			AccountMetrics.register();
+			
+			final WithdrawServer server = new WithdrawServer(served, new InetSocketAddress(port), threads, 
+					accountNumber -> image == null ? null : image.restoreAccount(accountNumber, null));
+			server.start();
+			out.println("Serve " + served + " on " + server.getAddress());
+			
+			if (checkpoint != null)
+				scheduleCheckpoints(Paths.get(checkpoint), served, server, image, interval);
+			
+			//The server threads keep running
+			return;
+		}
+		
+		if (replay != null) {
+			for (int note : new int[] {5, 10, 20, 50}) {
+				cashMachine.addNoteToCashMachine(note, notes);
+			}
+			
+			new TransactionReplay(cashMachine).run(Paths.get(replay));
+			
+			System.exit(0);
+		}
+		
+		if (simulate) {
+			new ReplenishmentSweep(loads, amounts, trials, horizon, top).run();
+			
+			System.exit(0);
+		}
+		
+		if (load) {
+			for (int note : new int[] {5, 10, 20, 50}) {
+				cashMachine.addNoteToCashMachine(note, notes);
+			}
+			
+			//Readable by jconsole during the load
+			cashMachine.getMetrics().register();
+			AccountMetrics.register();
+			
+			if (partitions == 0) {
+				new LoadGenerator(cashMachine, threads, duration, accounts, amounts).run();
+			} else {
+				try (PartitionedAccounts partitioned = new PartitionedAccounts(partitions, 
+						PartitionedAccounts.DEFAULT_CAPACITY)) {
+					new LoadGenerator(cashMachine, threads, duration, accounts, amounts, 
+							partitioned::getOrCreate).run();
+					out.println(partitioned);
+				}
+			}
+			
+			out.println(cashMachine.getMetrics());
+			out.println(AccountMetrics.get());
+			
+			System.exit(0);
+		}
+		
 		if (deposit < 0) {
 			System.err.println("deposit is " + deposit + " It should greater than zero");
 			printHelp();
@@ -105,26 +262,88 @@ public final class WithdrawApp {
 		out.println("    -withdrawal withdraw amount");
 		out.println("    -test withdraw amount from 20 to 250, deposit 1009838.59");
 		out.println("    -debug run application in debug mode");
+		out.println("    -trace trace account and cash machine operations to standard error, before -test or -load");
+		out.println("    -load run withdrawals from many threads, and report throughput and latency");
+		out.println("        -threads number of threads, default number of processors");
+		out.println("        -duration seconds of the load, default 10");
+		out.println("        -accounts number of accounts, default 1000");
+		out.println("        -amounts \"uniform\" from 20 to 250, or weighted amounts like 20:5,50:3,100");
+		out.println("        -notes number of each note filled in more, default 0");
+		out.println("        -partitions run accounts on this number of single writer partitions instead of locks");
+		out.println("    -simulate simulate note loads, and print the loads which disburse most withdrawals");
+		out.println("        -loads loads of notes 5/10/20/50, each a number or from:to:step, default 500:3000:500 each");
+		out.println("        -trials number of trials of each load, default 20");
+		out.println("        -horizon number of withdrawals in each trial, default 10000");
+		out.println("        -amounts \"uniform\" from 20 to 250, or weighted amounts like 20:5,50:3,100");
+		out.println("        -top number of loads to print, default 20");
+		out.println("    -serve serve withdrawals, deposits and balances in the binary protocol over TCP");
+		out.println("        -port port to listen, default 7070");
+		out.println("        -threads number of I/O threads, default number of processors");
+		out.println("        -notes number of each note filled in more, default 0");
+		out.println("        -checkpoint file to restore from, and to checkpoint notes and accounts to");
+		out.println("        -interval seconds between checkpoints, default 60");
+		out.println("    -replay {file} replay deposits and withdrawals of the file, lines like D,01001,1893.28 or W,01001,185");
+		out.println("        -notes number of each note filled in more, default 0");
 		out.println("    -h, -help print this help");
 		out.println("");
 		out.println("For example \"java -jar ./computershare.jar -withdrawal 185 -deposit 1893.28\"");
 	}
 	
+	/**
+	 * Checkpoint the cash machine and the accounts of the server every interval seconds while 
+	 * it serves, and once more when the application exits.
+	 */
+	private static void scheduleCheckpoints(final Path file, final CashMachineImpl cashMachine, 
+			final WithdrawServer server, final CheckpointImage base, final int interval) {
+		final Runnable checkpoint = () -> {
+			try {
+				final long begin = System.nanoTime();
+				final long epoch = CheckpointWriter.write(file, Collections.singletonList(cashMachine), 
+						server.getAccounts(), base);
+				out.printf("Checkpoint %d to %s in %.1f ms%n", epoch, file, (System.nanoTime() - begin) / 1e6);
+			} catch (IOException e) {
+				System.err.println("Checkpoint to " + file + " failed: " + e);
+			}
+		};
+		
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(checkpoint, interval, interval, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(checkpoint));
+	}
+	
+	private static int parseCount(String name, String value) throws WrongNumberFormatException {
+		if (!value.matches("\\d{1,9}") || Integer.parseInt(value) == 0)
+			throw new WrongNumberFormatException(name + " " + value + " is not a positive integer");
+		
+		return Integer.parseInt(value);
+	}
+	
 	private static void withdraw(Account account, CashMachine cashMachine, int withdrawal) throws LowThanMinimalException, HigherThanMaximumException, LowBalanceException, CannotDisburseException {
 		out.println(cashMachine.toString());
 
 		out.println("Withdraw " + withdrawal);
 		
-		out.println("Disburse: " + cashMachine.withdraw(account, withdrawal).toString());
+		//No notes are disbursed only if the account is overdrawn
+		final Disbursement disbursement = cashMachine.disburse(account, withdrawal);
+		out.println("Disburse: " + (disbursement.isEmpty() ? WithdrawStatus.OVERDRAWN.getMessage() 
+				: disbursement.toMap().toString()));
 		
 		out.println("After withdraw ");
 		out.println(account.toString());
 		out.println(cashMachine.toString());
 	}
 	
-	private static void testThough(Account account, CashMachine cashMachine) throws LowThanMinimalException, HigherThanMaximumException, LowBalanceException, CannotDisburseException {
+	private static void testThough(Account account, CashMachine cashMachine) {
 		for (int i = 20; i <= 250; i +=5) {
-			final Map<Integer, Integer> disburse = cashMachine.withdraw(account, i);
+			final WithdrawResult result = cashMachine.tryWithdraw(account, i);
+			if (!result.isSuccess())
+				throw new RuntimeException(i + " is rejected: " + result.getStatus().getMessage());
+			
+			final Map<Integer, Integer> disburse = result.getDisbursement().toMap();
 		
 			final int totalDispatch = disburse.entrySet().stream().flatMapToInt(t -> {
 					return Arrays.stream(new int[] {t.getKey() * t.getValue()});
@@ -1,5 +1,7 @@
 package io.gfeng.cash;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import io.gfeng.account.Account;
@@ -9,7 +11,9 @@ import io.gfeng.cash.exception.LowBalanceException;
 import io.gfeng.cash.exception.LowThanMinimalException;
 
 /**
- * An interface represents cash machine.
+ * An interface represents cash machine. An implementation needs only the core methods, 
+ * the others have defaults built on {@link #withdraw(Account, int)} and 
+ * {@link #checkNoteRemain(int)}, which an implementation overrides to do them faster.
  * @author gfeng
  *
  */
@@ -29,6 +33,22 @@ public interface CashMachine {
 	 */
 	public int checkNoteRemain(int note) ;
 	
+	/**
+	 * Return withdrawals the notes remain in cash machine can disburse in full, regardless of 
+	 * account's balance. Bit {@code i} is set if the withdrawal of {@code 20 + 5 * i} can be disbursed.
+	 * The default plans against {@link #checkNoteRemain(int)} of the notes 5, 10, 20 and 50.
+	 * @return long bit set of withdrawals
+	 */
+	public default long checkDisbursable() {
+		final int[] notes = DispensePlanner.NOTES;
+		final int[] stock = new int[notes.length];
+		for (int i = 0; i < notes.length; i++) {
+			stock[i] = checkNoteRemain(notes[i]);
+		}
+		
+		return DispensePlanner.DEFAULT.disbursable(stock);
+	}
+	
 	/**
 	 * Return easy reading {@link String} of account's balance. 
 	 * The output example {@code £123,567.28} of {@code 1234567.28}.
@@ -46,4 +66,77 @@ public interface CashMachine {
 	public Map<Integer, Integer> withdraw(Account account, int withdrawal)
 			throws LowThanMinimalException, HigherThanMaximumException, 
 			LowBalanceException, CannotDisburseException;
+	
+	/**
+	 * Withdraw amount from account. The same as {@link #withdraw(Account, int)} but return 
+	 * an immutable {@link Disbursement} instead of a new {@link Map}.
+	 * @param account {@link Account}
+	 * @param withdrawal. The amount to withdraw
+	 * @return {@link Disbursement} the notes disbursed
+	 */
+	public default Disbursement disburse(Account account, int withdrawal)
+			throws LowThanMinimalException, HigherThanMaximumException, 
+			LowBalanceException, CannotDisburseException {
+		return Disbursement.of(withdraw(account, withdrawal));
+	}
+	
+	/**
+	 * Withdraw amount from account without throwing on a rejection. The same as 
+	 * {@link #withdraw(Account, int)}, but a rejection is returned as the {@link WithdrawStatus}
+	 * of the result instead of a new {@link Exception} with its stack trace.
+	 * The default catches the exception of {@link #withdraw(Account, int)}, so it is no faster.
+	 * @param account {@link Account}
+	 * @param withdrawal. The amount to withdraw
+	 * @return {@link WithdrawResult} the notes disbursed, or the reason of rejection
+	 */
+	public default WithdrawResult tryWithdraw(Account account, int withdrawal) {
+		try {
+			final Disbursement disbursement = disburse(account, withdrawal);
+			
+			//No notes are disbursed only if the account is overdrawn
+			return disbursement.isEmpty() ? WithdrawResult.rejected(WithdrawStatus.OVERDRAWN) 
+					: new WithdrawResult(WithdrawStatus.SUCCESS, disbursement);
+		} catch (LowThanMinimalException e) {
+			return WithdrawResult.rejected(WithdrawStatus.LOWER_THAN_MINIMAL);
+		} catch (HigherThanMaximumException e) {
+			return WithdrawResult.rejected(WithdrawStatus.HIGHER_THAN_MAXIMUM);
+		} catch (LowBalanceException e) {
+			return WithdrawResult.rejected(WithdrawStatus.LOW_BALANCE);
+		} catch (CannotDisburseException e) {
+			return WithdrawResult.rejected(withdrawal % 5 != 0 ? WithdrawStatus.NOT_MULTIPLE_OF_FIVE 
+					: WithdrawStatus.CANNOT_DISBURSE);
+		}
+	}
+	
+	/**
+	 * Withdraw amount from account once per request id. A retry of a recent request returns the 
+	 * result of the first attempt, without checking, disbursing or debiting the account again, 
+	 * and waits for it if the first attempt is still running.
+	 * The default does not remember requests, so it is only {@link #tryWithdraw(Account, int)}, 
+	 * and an implementation which receives retries must override it.
+	 * @param requestId {@link String} unique id of the request, the same in its retries
+	 * @param account {@link Account}
+	 * @param withdrawal. The amount to withdraw
+	 * @return {@link WithdrawResult} the notes disbursed, or the reason of rejection
+	 * @throws IllegalArgumentException if the request id was used for another account or amount
+	 */
+	public default WithdrawResult tryWithdraw(String requestId, Account account, int withdrawal) {
+		return tryWithdraw(account, withdrawal);
+	}
+	
+	/**
+	 * Withdraw a batch of requests in order, with the same rules as {@link #withdraw(Account, int)}.
+	 * A rejected request does not stop the batch. The default withdraws the requests one by one 
+	 * by {@link #tryWithdraw(Account, int)}.
+	 * @param requests {@link List} of {@link WithdrawRequest}
+	 * @return {@link List} of {@link WithdrawResult}, one for each request in the same order
+	 */
+	public default List<WithdrawResult> withdrawBatch(List<WithdrawRequest> requests) {
+		final List<WithdrawResult> results = new ArrayList<>(requests.size());
+		for (WithdrawRequest request : requests) {
+			results.add(tryWithdraw(request.getAccount(), request.getWithdrawal()));
+		}
+		
+		return results;
+	}
 }
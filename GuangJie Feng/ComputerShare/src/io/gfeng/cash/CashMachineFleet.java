@@ -0,0 +1,333 @@
+package io.gfeng.cash;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.gfeng.account.Account;
+import io.gfeng.cash.exception.CannotDisburseException;
+import io.gfeng.cash.exception.HigherThanMaximumException;
+import io.gfeng.cash.exception.LowBalanceException;
+import io.gfeng.cash.exception.LowThanMinimalException;
+
+/**
+ * A fleet of {@link CashMachine}s in one system, which routes a withdrawal to a cash machine
+ * able to disburse it in full.
+ * <p>
+ * The fleet keeps an index of which cash machines can serve each legal withdrawal, one bit
+ * per cash machine for each withdrawal from 20 to 250. A withdrawal scans its bits from a random
+ * cash machine, so the load is spread across cash machines and threads share no lock. After a
+ * cash machine disburses or is filled in through the fleet, its bits are refreshed from
+ * {@link CashMachine#checkDisbursable()}. The index is a hint: if another thread empties a cash
+ * machine in between, the withdrawal moves on to the next cash machine in the index.
+ * <p>
+ * The number of withdrawals and rejections of each cash machine are counted.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class CashMachineFleet {
+	/**
+	 * A {@link CashMachine} in the fleet with its counters.
+	 */
+	private static final class Member {
+		private final CashMachine mMachine;
+
+		/**
+		 * Position of the cash machine in the index.
+		 */
+		private final int mSlot;
+
+		private final LongAdder mWithdrawals = new LongAdder();
+
+		private final LongAdder mRejections = new LongAdder();
+
+		/**
+		 * Number of refreshes requested. Only the thread which raised it from 0 refreshes,
+		 * and it refreshes again until no more is requested.
+		 */
+		private final AtomicInteger mRefreshes = new AtomicInteger();
+
+		/**
+		 * Withdrawals published to the index. It is written by the refreshing thread.
+		 */
+		private volatile long mDisbursable;
+
+		private Member(final CashMachine machine, final int slot) {
+			this.mMachine = machine;
+			this.mSlot = slot;
+		}
+	}
+
+	private final Member[] mMembers;
+
+	private final Map<CashMachine, Member> mMemberOf;
+
+	/**
+	 * Number of long words of bits for each withdrawal.
+	 */
+	private final int mWords;
+
+	/**
+	 * Bits of cash machines which can disburse each withdrawal. Bits of the withdrawal
+	 * {@code 20 + 5 * p} start from the word {@code p * mWords}.
+	 */
+	private final AtomicLongArray mIndex;
+
+	/**
+	 * Number of withdrawals no cash machine can disburse.
+	 */
+	private final LongAdder mUnserved = new LongAdder();
+
+	/**
+	 * Construct a fleet of cash machines, and index the notes remain in them.
+	 * @param machines {@link Collection} of unique {@link CashMachine}
+	 */
+	public CashMachineFleet(final Collection<? extends CashMachine> machines) {
+		this.mMembers = new Member[machines.size()];
+		this.mMemberOf = new HashMap<>(machines.size() * 2);
+		this.mWords = (mMembers.length + 63) >>> 6;
+		this.mIndex = new AtomicLongArray(DispensePlanner.PLAN_SIZE * mWords);
+
+		int slot = 0;
+		for (CashMachine machine : machines) {
+			final Member member = new Member(machine, slot);
+			if (mMemberOf.put(machine, member) != null)
+				throw new IllegalArgumentException("Duplicate cash machine " + machine);
+			mMembers[slot++] = member;
+		}
+
+		for (Member member : mMembers) {
+			refresh(member);
+		}
+	}
+
+	/**
+	 * Withdraw amount from account at a cash machine which can disburse it in full.
+	 * The rules are the same as {@link CashMachine#withdraw(Account, int)}.
+	 * @param account {@link Account}
+	 * @param withdrawal. The amount to withdraw
+	 * @return {@link Disbursement} the notes disbursed
+	 * @throws CannotDisburseException if no cash machine can disburse the withdrawal
+	 */
+	public Disbursement disburse(final Account account, final int withdrawal)
+			throws LowThanMinimalException, HigherThanMaximumException,
+			LowBalanceException, CannotDisburseException {
+		return DispensePlanner.disbursementOf(tryWithdraw(account, withdrawal));
+	}
+
+	/**
+	 * Withdraw amount from account at a cash machine which can disburse it in full, without
+	 * throwing on a rejection.
+	 * @param account {@link Account}
+	 * @param withdrawal. The amount to withdraw
+	 * @return {@link WithdrawResult} the notes disbursed, or the reason of rejection. It is
+	 * {@link WithdrawStatus#CANNOT_DISBURSE} if no cash machine can disburse the withdrawal.
+	 * @see CashMachine#tryWithdraw(Account, int)
+	 */
+	public WithdrawResult tryWithdraw(final Account account, final int withdrawal) {
+		//Check withdrawal before looking for a cash machine
+		final WithdrawStatus status = DispensePlanner.check(account, withdrawal);
+		if (status != WithdrawStatus.SUCCESS)
+			return WithdrawResult.rejected(status);
+
+		final int base = baseOf(withdrawal);
+		final int start = start();
+		int slot = start;
+		boolean wrapped = false;
+
+		while (true) {
+			slot = slot < mMembers.length ? next(base, slot) : -1;
+			if (slot < 0 && !wrapped) {
+				wrapped = true;
+				slot = next(base, 0);
+			}
+			if (slot < 0 || (wrapped && slot >= start))
+				break;
+
+			final Member member = mMembers[slot];
+			final WithdrawResult result = member.mMachine.tryWithdraw(account, withdrawal);
+			if (result.isSuccess()) {
+				member.mWithdrawals.increment();
+				refresh(member);
+
+				return result;
+			}
+
+			member.mRejections.increment();
+			if (result.getStatus() != WithdrawStatus.CANNOT_DISBURSE
+					&& result.getStatus() != WithdrawStatus.NO_FIVE_NOTE)
+				return result;
+
+			//The index was out of date. Try the next cash machine.
+			refresh(member);
+			slot++;
+		}
+
+		mUnserved.increment();
+
+		return WithdrawResult.rejected(WithdrawStatus.CANNOT_DISBURSE);
+	}
+
+	/**
+	 * Return a cash machine which can disburse the withdrawal in full, or null if there is none.
+	 * Another thread may empty the cash machine before it is used.
+	 * @param withdrawal int
+	 * @return {@link CashMachine}
+	 */
+	public CashMachine route(final int withdrawal) {
+		if (withdrawal < DispensePlanner.MINIMAL_WITHDRALS || withdrawal > DispensePlanner.MAXIMUM_WITHDRAWS
+				|| withdrawal % 5 != 0)
+			return null;
+
+		final int base = baseOf(withdrawal);
+		int slot = next(base, start());
+		if (slot < 0)
+			slot = next(base, 0);
+
+		return slot < 0 ? null : mMembers[slot].mMachine;
+	}
+
+	/**
+	 * Fill in bank note to a cash machine of the fleet, and refresh the index.
+	 * @param machine {@link CashMachine}
+	 * @param note int
+	 * @param count int
+	 * @return true if filling in succeeded
+	 */
+	public boolean addNoteToCashMachine(final CashMachine machine, final int note, final int count) {
+		final Member member = memberOf(machine);
+		final boolean added = machine.addNoteToCashMachine(note, count);
+		if (added)
+			refresh(member);
+
+		return added;
+	}
+
+	/**
+	 * Refresh the index of a cash machine which was changed outside the fleet.
+	 * @param machine {@link CashMachine}
+	 */
+	public void refresh(final CashMachine machine) {
+		refresh(memberOf(machine));
+	}
+
+	/**
+	 * Return number of withdrawals the cash machine disbursed through the fleet.
+	 * @param machine {@link CashMachine}
+	 * @return long
+	 */
+	public long getWithdrawals(final CashMachine machine) {
+		return memberOf(machine).mWithdrawals.sum();
+	}
+
+	/**
+	 * Return number of withdrawals the cash machine rejected through the fleet.
+	 * @param machine {@link CashMachine}
+	 * @return long
+	 */
+	public long getRejections(final CashMachine machine) {
+		return memberOf(machine).mRejections.sum();
+	}
+
+	/**
+	 * Return number of withdrawals no cash machine in the fleet could disburse.
+	 * @return long
+	 */
+	public long getUnserved() {
+		return mUnserved.sum();
+	}
+
+	/**
+	 * Return number of cash machines in the fleet.
+	 * @return int
+	 */
+	public int size() {
+		return mMembers.length;
+	}
+
+	private Member memberOf(final CashMachine machine) {
+		final Member member = mMemberOf.get(machine);
+		if (member == null)
+			throw new IllegalArgumentException("Not in the fleet " + machine);
+
+		return member;
+	}
+
+	private int baseOf(final int withdrawal) {
+		return (withdrawal - DispensePlanner.MINIMAL_WITHDRALS) / 5 * mWords;
+	}
+
+	private int start() {
+		return mMembers.length == 0 ? 0 : ThreadLocalRandom.current().nextInt(mMembers.length);
+	}
+
+	/**
+	 * Return the first slot from slot which can disburse the withdrawal of base, or -1.
+	 */
+	private int next(final int base, final int slot) {
+		if (mWords == 0)
+			return -1;
+
+		int word = slot >>> 6;
+		long bits = mIndex.get(base + word) & (-1L << slot);
+		while (bits == 0) {
+			if (++word == mWords)
+				return -1;
+			bits = mIndex.get(base + word);
+		}
+
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * Publish withdrawals of the cash machine to the index. Concurrent refreshes of a cash
+	 * machine are merged, so the last published is read after the last change.
+	 */
+	private void refresh(final Member member) {
+		if (member.mRefreshes.getAndIncrement() != 0)
+			return;
+
+		int missed = 1;
+		do {
+			final long disbursable = member.mMachine.checkDisbursable();
+			long changed = disbursable ^ member.mDisbursable;
+			member.mDisbursable = disbursable;
+
+			while (changed != 0) {
+				final int p = Long.numberOfTrailingZeros(changed);
+				changed &= changed - 1;
+				update(p * mWords + (member.mSlot >>> 6), 1L << member.mSlot, (disbursable & (1L << p)) != 0);
+			}
+
+			missed = member.mRefreshes.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void update(final int word, final long bit, final boolean set) {
+		while (true) {
+			final long bits = mIndex.get(word);
+			final long update = set ? bits | bit : bits & ~bit;
+			if (bits == update || mIndex.compareAndSet(word, bits, update))
+				return;
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("CashMachineFleet [");
+		for (int i = 0; i < mMembers.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(mMembers[i].mMachine).append(" withdrawals=").append(mMembers[i].mWithdrawals.sum())
+					.append(" rejections=").append(mMembers[i].mRejections.sum());
+		}
+
+		return sb.append(", unserved=").append(mUnserved.sum()).append(']').toString();
+	}
+}
@@ -1,7 +1,10 @@
 package io.gfeng.cash;
 
-import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.locks.ReentrantLock;
@@ -14,10 +17,30 @@ import io.gfeng.cash.exception.CannotDisburseException;
 import io.gfeng.cash.exception.HigherThanMaximumException;
 import io.gfeng.cash.exception.LowBalanceException;
 import io.gfeng.cash.exception.LowThanMinimalException;
+import io.gfeng.checkpoint.CheckpointEpoch;
+import io.gfeng.journal.TransactionJournal;
+import io.gfeng.trace.OperationTracer;
 
 /**
  * An implementation of {@link CashMachine} with an unique {@link String} id. 
  * So the instance should be unique in the system.
+ * <p>
+ * A withdrawal reserves notes under lock, debits the account outside lock, then commits the 
+ * reservation, or rolls it back under lock if the account is overdrawn. So the lock is held 
+ * only for planning and counting notes, and a slow or contended account delays its own 
+ * withdrawals only, not other withdrawals at this cash machine.
+ * <p>
+ * Lock ordering: the cash machine's lock is never held while an account's lock is taken, and 
+ * an account never calls a cash machine, so the two locks are never held in opposite orders 
+ * and cannot deadlock. The {@link TransactionJournal} lock is taken last, under either of them, 
+ * and takes no other lock.
+ * <p>
+ * A withdrawal or replenish pins one {@link CheckpointEpoch} from reserve to commit, so its 
+ * notes and its account are on the same side of the cut of a checkpoint, and the notes at the 
+ * cut are kept.
+ * <p>
+ * Withdrawals and replenishes are traced to the {@link OperationTracer} outside lock, if tracing is on.
+ * Withdrawals, rejections and the time of its lock are counted in {@link CashMachineMetrics}.
  * Its instance is thread safe.
  * 
  * @author gfeng
@@ -28,45 +51,160 @@ public final class CashMachineImpl implements CashMachine {
 	private static final Logger log = Logger.getLogger(CashMachineImpl.class.getName());
 	
 	/**
-	 * The minimal amount of withdraw.
+	 * A {@link String} unique id of instance.
 	 */
-	private static final int MINIMAL_WITHDRALS = 20;
+	private final String mId;
 	
 	/**
-	 * The maximum amount of withdraw.
+	 * A {@link ReentrantLock} for guarded replenish. 
 	 */
-	private static final int MAXIMUM_WITHDRAWS = 250;
+	private final ReentrantLock mLock;
 	
 	/**
-	 * A {@link DecimalFormat} with pattern "£###,###.##" for printing out {@link Account} balance. 
+	 * Plans notes of the denominations of this cash machine.
 	 */
-	private static final DecimalFormat BALANCE_FORMATTER = new DecimalFormat("£###,###.##");
+	private final DispensePlanner mPlanner;
 	
+	/**
+	 * Number of each note available in this cash machine, in the order of denominations. Notes 
+	 * reserved by withdrawals in progress are deducted. It is guarded by lock.
+	 */
+	private final int[] mReplenish;
 	
 	/**
-	 * A {@link String} unique id of instance.
+	 * Number of each note in this cash machine after committed withdrawals, which the journal 
+	 * records. It is kept only with a journal, and guarded by lock.
 	 */
-	private final String mId;
+	private final int[] mCommitted;
 	
 	/**
-	 * A {@link ReentrantLock} for guarded replenish. 
+	 * Bit mask of notes in stock, which selects the compiled plan table of {@link DispensePlanner}.
+	 * It is guarded by lock.
 	 */
-	private final ReentrantLock mLock;
+	private int mPlanMask;
+	
+	/**
+	 * The latest epoch which changed the notes available, and the notes before it. A note of the 
+	 * cut is negative if withdrawals of the epoch before took notes replenished after the cut. 
+	 * They are guarded by lock.
+	 */
+	private long mCutEpoch;
+	
+	private final int[] mCut;
+	
+	/**
+	 * A {@link TransactionJournal} records note deductions and replenishes, or null.
+	 */
+	private final TransactionJournal mJournal;
+	
+	/**
+	 * Time the lock was taken, and nanoseconds waited for it. They are guarded by lock.
+	 */
+	private long mLocked;
+	
+	private long mWaited;
+	
+	/**
+	 * Counters of this cash machine.
+	 */
+	private final CashMachineMetrics mMetrics;
 	
 	/**
-	 * A {@link Map} holds note in this cash machine. The key is note, value is number of the note.
-	 * Currency notes of denominations 5, 10, 20 and 50.
+	 * Recent results by request id.
 	 */
-	private final Map<Integer, Integer> mReplenish;
+	private final RequestCache mRequests;
 	
 	/**
 	 * Construct a {@link CashMachine}
 	 * @param id {@link String}
 	 */
 	public CashMachineImpl(String id) {
+		this(id, null);
+	}
+	
+	/**
+	 * Construct a {@link CashMachine} which records every change of notes in journal. 
+	 * A change is durable before the method returns.
+	 * @param id {@link String}
+	 * @param journal {@link TransactionJournal}
+	 */
+	public CashMachineImpl(String id, TransactionJournal journal) {
+		this(id, DispensePlanner.NOTES, journal);
+	}
+	
+	/**
+	 * Construct a {@link CashMachine} of denominations other than 5, 10, 20 and 50. 
+	 * The smallest note takes the place of the 5 note in the rules.
+	 * @param id {@link String}
+	 * @param notes int[] denominations of notes in ascending order
+	 * @param journal {@link TransactionJournal}, or null
+	 * @throws IllegalArgumentException if the notes are not positive and ascending, or there 
+	 * are more than 8.
+	 */
+	public CashMachineImpl(String id, int[] notes, TransactionJournal journal) {
 		this.mId = id;
-		this.mReplenish = new HashMap<>();
+		this.mPlanner = DispensePlanner.of(notes);
+		this.mReplenish = new int[mPlanner.getNotes().length];
+		this.mCommitted = new int[mReplenish.length];
+		this.mCut = new int[mReplenish.length];
 		this.mLock = new ReentrantLock(true);
+		this.mJournal = journal;
+		
+		//The metrics copy the notes under the lock, without this which is not constructed yet
+		final ReentrantLock lock = mLock;
+		final int[] replenish = mReplenish;
+		this.mMetrics = new CashMachineMetrics(id, mPlanner.getNotes(), () -> {
+			lock.lock();
+			
+			try {
+				return replenish.clone();
+			} finally {
+				lock.unlock();
+			}
+		});
+		this.mRequests = new RequestCache(RequestCache.DEFAULT_CAPACITY, RequestCache.DEFAULT_TIME_TO_LIVE, mMetrics);
+	}
+	
+	/**
+	 * Return counters of this cash machine. Call {@link CashMachineMetrics#register()} to read them 
+	 * by JMX.
+	 * @return {@link CashMachineMetrics}
+	 */
+	public CashMachineMetrics getMetrics() {
+		return mMetrics;
+	}
+	
+	/**
+	 * Return the unique id.
+	 * @return {@link String}
+	 */
+	public String getId() {
+		return mId;
+	}
+	
+	/**
+	 * Return number of each note at the cut of a checkpoint, after every operation of the epoch 
+	 * before it has exited. The key is note in ascending order, value is number of the note.
+	 * Notes which withdrawals of the epoch before took from replenishes after the cut are 
+	 * charged to the new epoch, so a number is never negative. It is guarded by lock.
+	 * @param epoch long the epoch started by the checkpoint
+	 * @return {@link Map}
+	 */
+	public Map<Integer, Integer> getCheckpointNotes(final long epoch) {
+		final int[] notes = mPlanner.getNotes();
+		final Map<Integer, Integer> counts = new LinkedHashMap<>();
+		lock();
+		
+		try {
+			final int[] stock = mCutEpoch >= epoch ? mCut : mReplenish;
+			for (int i = 0; i < notes.length; i++) {
+				counts.put(notes[i], Math.max(0, stock[i]));
+			}
+		} finally {
+			unlock();
+		}
+		
+		return counts;
 	}
 	
 	/**
@@ -74,38 +212,74 @@ public final class CashMachineImpl implements CashMachine {
 	 * @see CashMachine#checkNoteRemain(int)
 	 */
 	public int checkNoteRemain(final int note) {
-		mLock.lock();
+		lock();
 		
 		try {
-			final Integer noteCount = mReplenish.get(note);
+			final int slot = mPlanner.slotOf(note);
 			
-			return noteCount == null? 0 : noteCount;
+			return slot < 0 ? 0 : mReplenish[slot];
 		} finally {
-			mLock.unlock();
+			unlock();
 		}
 	}
 	
 	/**
-	 * It is guarded by lock.
+	 * It copies notes under lock, and plans outside lock.
+	 * @see CashMachine#checkDisbursable()
+	 */
+	public long checkDisbursable() {
+		final int[] stock;
+		lock();
+		
+		try {
+			stock = mReplenish.clone();
+		} finally {
+			unlock();
+		}
+		
+		return mPlanner.disbursable(stock);
+	}
+	
+	/**
+	 * It is guarded by lock. Return false if the note is not one of the denominations.
 	 * @see CashMachine#addNoteToCashMachine(int, int)
 	 */
 	public boolean addNoteToCashMachine(final int note, final int count) {
-		mLock.lock();
+		final int slot = mPlanner.slotOf(note);
+		if (slot < 0)
+			return false;
+		
+		long sequence = 0;
+		final long epoch = CheckpointEpoch.enter();
+		lock();
 		
 		try {
-			final Integer noteCount = mReplenish.get(note);
-			if (noteCount == null) {
-				mReplenish.put(note, Integer.valueOf(count));
-			} else {
-				final int updateCount = noteCount.intValue() + count;
-
-				mReplenish.put(note, updateCount);
+			advance(epoch);
+			mReplenish[slot] += count;
+			if (epoch < mCutEpoch)
+				mCut[slot] += count;
+			mPlanMask = mPlanner.maskOf(mReplenish);
+			
+			if (mJournal != null) {
+				mCommitted[slot] += count;
+				final int[] counts = new int[mReplenish.length];
+				counts[slot] = count;
+				sequence = mJournal.appendNotes(TransactionJournal.NOTE_REPLENISH, mId, 
+						mPlanner.getNotes(), counts, mCommitted);
 			}
-
-			return true;
 		} finally {
-			mLock.unlock();
+			unlock();
+			CheckpointEpoch.exit();
 		}
+		
+		final OperationTracer tracer = OperationTracer.current();
+		if (tracer != null)
+			tracer.trace(OperationTracer.REPLENISH, mId, null, note, count);
+		
+		if (sequence != 0)
+			mJournal.await(sequence);
+
+		return true;
 	}
 
 	/**
@@ -115,7 +289,7 @@ public final class CashMachineImpl implements CashMachine {
 		if (account == null)
 			throw new RuntimeException("Please input a valid account");
 				
-		return BALANCE_FORMATTER.format(account.checkBalance());
+		return ReceiptFormatter.formatBalance(account.checkBalance());
 	}
 	
 	/**
@@ -129,110 +303,374 @@ public final class CashMachineImpl implements CashMachine {
 	public Map<Integer, Integer> withdraw(final Account account, final int withdrawal) 
 			throws LowThanMinimalException, HigherThanMaximumException, 
 			LowBalanceException, CannotDisburseException { 
+		return disburse(account, withdrawal).toMap();
+	}
+	
+	/**
+	 * The rules are the same as {@link #withdraw(Account, int)}. The returned {@link Disbursement}
+	 * of an ideal plan is shared, so the withdrawal allocates nothing when notes are in stock.
+	 * @see CashMachine#disburse(Account, int)
+	 */
+	public Disbursement disburse(final Account account, final int withdrawal) 
+			throws LowThanMinimalException, HigherThanMaximumException, 
+			LowBalanceException, CannotDisburseException { 
+		return DispensePlanner.disbursementOf(tryWithdraw(account, withdrawal));
+	}
+	
+	/**
+	 * The rules are the same as {@link #withdraw(Account, int)}. A rejection is a shared result,
+	 * so it costs no allocation.
+	 * @see CashMachine#tryWithdraw(Account, int)
+	 */
+	public WithdrawResult tryWithdraw(final Account account, final int withdrawal) {
 		//Check withdrawal
-		if (withdrawal < MINIMAL_WITHDRALS)
-			throw new LowThanMinimalException("Minimal withdraw is " + MINIMAL_WITHDRALS);
+		final WithdrawStatus status = DispensePlanner.check(account, withdrawal);
+		if (status != WithdrawStatus.SUCCESS) {
+			final WithdrawResult rejected = WithdrawResult.rejected(status);
+			record(account, withdrawal, rejected);
+			
+			return rejected;
+		}
 		
-		if (withdrawal > MAXIMUM_WITHDRAWS)
-			throw new HigherThanMaximumException("Maximum withdraw is " + MAXIMUM_WITHDRAWS);
+		final WithdrawResult result;
+		long sequence = 0;
+		final long epoch = CheckpointEpoch.enter();
 		
-		if (withdrawal > account.checkBalance())
-			throw new LowBalanceException("Your balance is low.");
+		try {
+			result = reserve(withdrawal, epoch);
+			if (result.isSuccess()) {
+				boolean debited = false;
+				try {
+					debited = debit(account, withdrawal);
+				} finally {
+					//Overdrawn, or the account threw
+					if (!debited)
+						rollback(result.getDisbursement(), epoch);
+				}
+				
+				if (!debited) {
+					record(account, withdrawal, WithdrawResult.rejected(WithdrawStatus.OVERDRAWN));
+					
+					return WithdrawResult.rejected(WithdrawStatus.OVERDRAWN);
+				}
+				
+				sequence = commit(result.getDisbursement());
+			}
+		} finally {
+			CheckpointEpoch.exit();
+		}
 		
-		if (withdrawal % 5 != 0)
-			throw new CannotDisburseException("Withdraw should be 5 times");
+		record(account, withdrawal, result);
 		
-		mLock.lock();
+		//Wait for the journal outside lock, so other withdrawals share the commit
+		if (sequence != 0)
+			mJournal.await(sequence);
 		
-		final Map<Integer, Integer> disburse = new HashMap<>(mReplenish.size());
-
-		try {
-			int remain = withdrawal;
-			final int note5;
-			if (withdrawal % 10 == 0) { 
-				//Withdraw 10 multiply. Try get at least one 5 note, if possible
-				note5 = Math.min(2, mReplenish.get(5));
-			} else { 
-				//Withdrawal end with 5 (for example 15, 195). Must get one 5 note.
-				note5 = Math.min(1, mReplenish.get(5));
-				if (note5 == 0)
-					throw new CannotDisburseException("No 5 pound note available");
+		return result;
+	}
+	
+	/**
+	 * Results are kept for 10 minutes, at most 65536 of them, and duplicates are counted in 
+	 * {@link CashMachineMetrics}.
+	 * @see CashMachine#tryWithdraw(String, Account, int)
+	 */
+	public WithdrawResult tryWithdraw(final String requestId, final Account account, final int withdrawal) {
+		return mRequests.tryWithdraw(requestId, account, withdrawal, this);
+	}
+	
+	/**
+	 * The balance of each account of the batch is read once before the lock, and the lock is 
+	 * taken twice for the whole batch. The requests are checked and their notes reserved in order 
+	 * under one lock, each against the notes and the balance left by the requests before it, so no 
+	 * account is called under lock. The accounts are debited in order outside lock. Then the notes 
+	 * of the overdrawn requests are put back, and the rest committed, under one lock again. 
+	 * <p>
+	 * The results are the same as calling {@link #withdraw(Account, int)} one by one, but that 
+	 * notes put back by an overdrawn request are not offered to the requests after it in the 
+	 * batch. A request is {@link WithdrawStatus#OVERDRAWN} only if another operation took from its 
+	 * account during the batch. If a debit throws, the notes of it and of the requests not debited 
+	 * are put back, and the requests debited are committed, before the exception is thrown.
+	 * @see CashMachine#withdrawBatch(List)
+	 */
+	public List<WithdrawResult> withdrawBatch(final List<WithdrawRequest> requests) {
+		final WithdrawResult[] results = new WithdrawResult[requests.size()];
+		
+		//Balance left of each account, read outside lock
+		final Map<Account, Integer> accounts = new HashMap<>();
+		final int[] accountOf = new int[results.length];
+		final double[] balances = new double[results.length];
+		for (int i = 0; i < results.length; i++) {
+			final Account account = requests.get(i).getAccount();
+			Integer a = accounts.get(account);
+			if (a == null) {
+				a = accounts.size();
+				accounts.put(account, a);
+				balances[a] = account.checkBalance();
 			}
-			if(note5 > 0) {
-				remain -= note5 * 5;
-				disburse.put(5, note5);
+			accountOf[i] = a;
+		}
+		
+		long sequence = 0;
+		final long epoch = CheckpointEpoch.enter();
+		
+		try {
+			lock();
+			try {
+				for (int i = 0; i < results.length; i++) {
+					final WithdrawRequest request = requests.get(i);
+					final WithdrawStatus status = DispensePlanner.check(request.getWithdrawal(), balances[accountOf[i]]);
+					
+					results[i] = status != WithdrawStatus.SUCCESS ? WithdrawResult.rejected(status) 
+							: reserveLocked(request.getWithdrawal(), epoch);
+					if (results[i].isSuccess())
+						balances[accountOf[i]] -= request.getWithdrawal();
+				}
+			} finally {
+				unlock();
 			}
 			
-			//Get 50 notes
-			remain = getRemain(disburse, remain, 50);
-	
-			if (remain > 0) {
-				//Get 20 note in remains
-				remain = getRemain(disburse, remain, 20);
-	
-				if (remain > 0) {
-					//Having remains, get 10 notes
-					remain = getRemain(disburse, remain, 10);
-	
-					if (remain > 0) {
-						//Having remains, get 5 notes.
-						int note5Append = Math.min(remain / 5, mReplenish.get(5) - note5);
-						remain -= note5Append * 5;
-						if (remain != 0) {
-							//The replenish is not enough notes for this withdraw
-							final StringBuilder msg = new StringBuilder("Distpath error.");
-							msg.append("\n\taccount: ").append(account.toString());
-							msg.append(" withdrawal: ").append(withdrawal);
-							msg.append("\n\treplenish: ").append(mReplenish.toString());
-							msg.append("\n\tdisburse: ").append(disburse.toString());
-							msg.append("\n\tcannot disburse: ").append(remain);
-							log.warning(msg.toString());
-							
-							throw new CannotDisburseException("Dispatch error. Cannot withdraw this amount");
-						} else if(note5Append > 0) {
-							final Integer exist5 = disburse.get(5);
-							if (exist5 != null)
-								note5Append += exist5.intValue();
-							
-							disburse.put(5, note5Append);
-						}
-					}
+			final boolean[] overdrawn = new boolean[results.length];
+			int debited = 0;
+			try {
+				for (; debited < results.length; debited++) {
+					final WithdrawRequest request = requests.get(debited);
+					if (results[debited].isSuccess() && !debit(request.getAccount(), request.getWithdrawal()))
+						overdrawn[debited] = true;
 				}
+			} finally {
+				sequence = settle(results, overdrawn, debited, epoch);
 			}
+		} finally {
+			CheckpointEpoch.exit();
+		}
+		
+		for (int i = 0; i < results.length; i++) {
+			record(requests.get(i).getAccount(), requests.get(i).getWithdrawal(), results[i]);
+		}
+		
+		//One wait for the whole batch
+		if (sequence != 0)
+			mJournal.await(sequence);
+		
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
 	
-			try {
-				//Deduct withdrawal from account
-				//It is safe casting from int to double
-				account.withdraw((double)withdrawal);
+	/**
+	 * Count and trace the result of a withdrawal, and warn of an overdrawn account. It is called 
+	 * outside lock.
+	 */
+	private void record(final Account account, final int withdrawal, final WithdrawResult result) {
+		mMetrics.record(result);
+		if (result.getStatus() == WithdrawStatus.OVERDRAWN)
+			log.warning(account + " fail to withdraw " + withdrawal + " at " + mId);
+		
+		final OperationTracer tracer = OperationTracer.current();
+		if (tracer == null)
+			return;
+		
+		if (result.isSuccess())
+			tracer.trace(OperationTracer.DISBURSE, mId, result.getDisbursement(), withdrawal, 
+					result.getDisbursement().getNoteCount());
+		else
+			tracer.trace(OperationTracer.REJECT, mId, result.getStatus(), withdrawal, 0);
+	}
+	
+	/**
+	 * Take the lock, and note the time waited for it.
+	 */
+	private void lock() {
+		final long begin = System.nanoTime();
+		mLock.lock();
+		mLocked = System.nanoTime();
+		mWaited = mLocked - begin;
+	}
+	
+	/**
+	 * Release the lock, and count the time of the lock outside lock.
+	 */
+	private void unlock() {
+		final long held = System.nanoTime() - mLocked;
+		final long waited = mWaited;
+		mLock.unlock();
+		mMetrics.recordLock(waited, held);
+	}
+	
+	/**
+	 * Plan a checked withdrawal of epoch, and deduct its notes from the notes available under lock.
+	 * @return {@link WithdrawResult} of the notes reserved, or the reason the notes cannot 
+	 * disburse the withdrawal
+	 */
+	private WithdrawResult reserve(final int withdrawal, final long epoch) {
+		lock();
+		
+		try {
+			return reserveLocked(withdrawal, epoch);
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * The same as {@link #reserve(int, long)}. It is guarded by lock, so it does not call the 
+	 * account, not even for logging.
+	 */
+	private WithdrawResult reserveLocked(final int withdrawal, final long epoch) {
+		advance(epoch);
+		WithdrawResult plan = mPlanner.plan(withdrawal, mPlanMask);
+		if (plan == null || !inStock(plan.getDisbursement())) {
+			//The ideal plan is not in stock. Search notes remain in cash machine.
+			plan = mPlanner.search(withdrawal, mReplenish);
+			if (!plan.isSuccess()) {
+				if (log.isLoggable(Level.FINE))
+					log.fine("Dispatch error. withdrawal: " + withdrawal + " replenish: " + mPlanner.toString(mReplenish));
 				
-				//Deduct note from replenish
-				disburse.entrySet().stream().forEach(t -> { 
-					Integer value = t.getValue();
-					if (value != 0) {
-						Integer key = t.getKey();
-						int noteRemain = mReplenish.get(key) - value;
-						mReplenish.put(key, noteRemain);
-					}
-				});
-			} catch (OverDrawnException e) {
-				disburse.clear();
-				log.log(Level.WARNING, e.getMessage(), e.getStackTrace());
+				return plan;
 			}
+		}
+		
+		//A withdrawal of the epoch before the cut is deducted at the cut too, even below zero
+		final int[] counts = plan.getDisbursement().mCounts;
+		final boolean beforeCut = epoch < mCutEpoch;
+		
+		//Deduct note from replenish
+		for (int i = 0; i < mReplenish.length; i++) {
+			mReplenish[i] -= counts[i];
+			if (beforeCut)
+				mCut[i] -= counts[i];
+		}
+		
+		mPlanMask = mPlanner.maskOf(mReplenish);
+		
+		return plan;
+	}
+	
+	/**
+	 * Deduct withdrawal from account outside lock. Return false if the account is overdrawn, 
+	 * which is logged by {@link #record(Account, int, WithdrawResult)}.
+	 */
+	private boolean debit(final Account account, final int withdrawal) {
+		try {
+			//It is safe casting from int to double
+			account.withdraw((double)withdrawal);
 			
-			return disburse;
+			return true;
+		} catch (OverDrawnException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Put notes reserved in epoch back to the notes available under lock.
+	 */
+	private void rollback(final Disbursement reserved, final long epoch) {
+		lock();
+		
+		try {
+			rollbackLocked(reserved, epoch);
 		} finally {
-			mLock.unlock();
+			unlock();
 		}
 	}
-
-	private int getRemain(final Map<Integer, Integer> disburse, int remain, final int note) {
-		final int numNote = Math.min(remain / note, mReplenish.get(note));
-		remain -= numNote * note;
-		if(numNote > 0) {
-			disburse.put(note, numNote);
+	
+	/**
+	 * The same as {@link #rollback(Disbursement, long)}. It is guarded by lock.
+	 */
+	private void rollbackLocked(final Disbursement reserved, final long epoch) {
+		advance(epoch);
+		for (int i = 0; i < mReplenish.length; i++) {
+			mReplenish[i] += reserved.mCounts[i];
+			if (epoch < mCutEpoch)
+				mCut[i] += reserved.mCounts[i];
+		}
+		
+		mPlanMask = mPlanner.maskOf(mReplenish);
+	}
+	
+	/**
+	 * Commit reserved notes. Without a journal there is nothing to do, because the notes were 
+	 * deducted when reserved. With a journal, the deduction is recorded under lock.
+	 * @return sequence of the last record appended to journal, or 0
+	 */
+	private long commit(final Disbursement reserved) {
+		if (mJournal == null)
+			return 0;
+		
+		lock();
+		
+		try {
+			return appendDeduction(reserved);
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * Settle the notes reserved by a batch under one lock. The notes of the results overdrawn, 
+	 * and of the results from debited on which were not debited, are put back, and their results 
+	 * become {@link WithdrawStatus#OVERDRAWN}. The notes of the rest are committed.
+	 * @return sequence of the last record appended to journal, or 0
+	 */
+	private long settle(final WithdrawResult[] results, final boolean[] overdrawn, final int debited, 
+			final long epoch) {
+		long sequence = 0;
+		lock();
+		
+		try {
+			for (int i = 0; i < results.length; i++) {
+				if (!results[i].isSuccess())
+					continue;
+				
+				if (overdrawn[i] || i >= debited) {
+					rollbackLocked(results[i].getDisbursement(), epoch);
+					results[i] = WithdrawResult.rejected(WithdrawStatus.OVERDRAWN);
+				} else if (mJournal != null) {
+					sequence = appendDeduction(results[i].getDisbursement());
+				}
+			}
+		} finally {
+			unlock();
+		}
+		
+		return sequence;
+	}
+	
+	/**
+	 * Deduct committed notes, and append the deduction to journal. It is guarded by lock.
+	 */
+	private long appendDeduction(final Disbursement reserved) {
+		final int[] counts = reserved.mCounts;
+		for (int i = 0; i < mCommitted.length; i++) {
+			mCommitted[i] -= counts[i];
 		}
 		
-		return remain;
+		return mJournal.appendNotes(TransactionJournal.NOTE_DEDUCTION, mId, 
+				mPlanner.getNotes(), counts, mCommitted);
+	}
+	
+	/**
+	 * Return true if cash machine has enough notes for the plan. It is guarded by lock.
+	 */
+	private boolean inStock(final Disbursement plan) {
+		return covers(mReplenish, plan.mCounts);
+	}
+	
+	private static boolean covers(final int[] stock, final int[] counts) {
+		for (int i = 0; i < stock.length; i++) {
+			if (counts[i] > stock[i])
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Keep the notes available before the first change of a newer epoch. It is guarded by lock.
+	 */
+	private void advance(final long epoch) {
+		if (epoch > mCutEpoch) {
+			System.arraycopy(mReplenish, 0, mCut, 0, mReplenish.length);
+			mCutEpoch = epoch;
+		}
 	}
 	
 	@Override
@@ -259,11 +697,11 @@ public final class CashMachineImpl implements CashMachine {
 
 	@Override
 	public String toString() {
-		mLock.lock();
+		lock();
 		try {
-			return "CashMachine [id=" + mId + ", replenish=" + mReplenish + "]";
+			return "CashMachine [id=" + mId + ", replenish=" + mPlanner.toString(mReplenish) + "]";
 		} finally {
-			mLock.unlock();
+			unlock();
 		}
 	}
 }
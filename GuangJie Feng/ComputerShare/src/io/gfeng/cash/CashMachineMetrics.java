@@ -0,0 +1,214 @@
+package io.gfeng.cash;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of a {@link CashMachineImpl}, published as an MXBean named
+ * {@code io.gfeng.cash:type=CashMachine,id="<id>"} by {@link #register()}.
+ * <p>
+ * Counters are {@link LongAdder}s, which are striped across threads, so recording adds no
+ * contention to withdrawals. The cash machine records after releasing its lock, except the
+ * time of the lock itself. A reading is a sum of stripes, not a snapshot across counters.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class CashMachineMetrics implements CashMachineMetricsMXBean {
+	private final String mId;
+
+	/**
+	 * A copy of the notes remain of the cash machine in the order of denominations. It does not 
+	 * hold the cash machine, which is not constructed yet when its metrics are.
+	 */
+	private final Supplier<int[]> mRemaining;
+
+	/**
+	 * Denominations of the cash machine in ascending order.
+	 */
+	private final int[] mNotes;
+
+	private final LongAdder mWithdrawals = new LongAdder();
+
+	private final LongAdder mAmountDisbursed = new LongAdder();
+
+	/**
+	 * Number of rejections indexed by ordinal of {@link WithdrawStatus}.
+	 */
+	private final LongAdder[] mRejections;
+
+	/**
+	 * Number of notes disbursed in the order of denominations.
+	 */
+	private final LongAdder[] mDispensed;
+
+	private final LongAdder mDuplicateRequests = new LongAdder();
+
+	private final LongAdder mLockAcquisitions = new LongAdder();
+
+	private final LongAdder mLockWaitNanos = new LongAdder();
+
+	private final LongAdder mLockHoldNanos = new LongAdder();
+
+	CashMachineMetrics(final String id, final int[] notes, final Supplier<int[]> remaining) {
+		this.mId = id;
+		this.mNotes = notes;
+		this.mRemaining = remaining;
+		this.mRejections = newAdders(WithdrawStatus.values().length);
+		this.mDispensed = newAdders(notes.length);
+	}
+
+	/**
+	 * Register to the platform MBean server, so it is readable by jconsole.
+	 * @return {@link ObjectName} registered
+	 * @throws JMException if the name is taken, for example by a cash machine of the same id
+	 */
+	public ObjectName register() throws JMException {
+		final ObjectName name = objectName();
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+
+		return name;
+	}
+
+	/**
+	 * Unregister from the platform MBean server, if it is registered.
+	 * @throws JMException
+	 */
+	public void unregister() throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = objectName();
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+	}
+
+	/**
+	 * Record the result of a withdrawal.
+	 */
+	void record(final WithdrawResult result) {
+		if (!result.isSuccess()) {
+			mRejections[result.getStatus().ordinal()].increment();
+			return;
+		}
+
+		final Disbursement disbursement = result.getDisbursement();
+		mWithdrawals.increment();
+		mAmountDisbursed.add(disbursement.getAmount());
+		for (int i = 0; i < mDispensed.length; i++) {
+			if (disbursement.mCounts[i] != 0)
+				mDispensed[i].add(disbursement.mCounts[i]);
+		}
+	}
+
+	/**
+	 * Record a retried request answered by the result of its first attempt.
+	 */
+	void recordDuplicate() {
+		mDuplicateRequests.increment();
+	}
+
+	/**
+	 * Record a hold of the lock.
+	 * @param waitNanos nanoseconds waited for the lock
+	 * @param holdNanos nanoseconds the lock was held
+	 */
+	void recordLock(final long waitNanos, final long holdNanos) {
+		mLockAcquisitions.increment();
+		mLockWaitNanos.add(waitNanos);
+		mLockHoldNanos.add(holdNanos);
+	}
+
+	public String getId() {
+		return mId;
+	}
+
+	public long getWithdrawals() {
+		return mWithdrawals.sum();
+	}
+
+	public long getAmountDisbursed() {
+		return mAmountDisbursed.sum();
+	}
+
+	public long getRejections() {
+		long rejections = 0;
+		for (LongAdder adder : mRejections) {
+			rejections += adder.sum();
+		}
+
+		return rejections;
+	}
+
+	public Map<String, Long> getRejectionsByStatus() {
+		final Map<String, Long> rejections = new LinkedHashMap<>();
+		for (WithdrawStatus status : WithdrawStatus.values()) {
+			if (status != WithdrawStatus.SUCCESS)
+				rejections.put(status.name(), mRejections[status.ordinal()].sum());
+		}
+
+		return rejections;
+	}
+
+	public Map<Integer, Long> getNotesDispensed() {
+		final Map<Integer, Long> dispensed = new LinkedHashMap<>();
+		for (int i = 0; i < mNotes.length; i++) {
+			dispensed.put(mNotes[i], mDispensed[i].sum());
+		}
+
+		return dispensed;
+	}
+
+	public Map<Integer, Integer> getNotesRemaining() {
+		final int[] counts = mRemaining.get();
+		final Map<Integer, Integer> remaining = new LinkedHashMap<>();
+		for (int i = 0; i < mNotes.length; i++) {
+			remaining.put(mNotes[i], counts[i]);
+		}
+
+		return remaining;
+	}
+
+	public long getDuplicateRequests() {
+		return mDuplicateRequests.sum();
+	}
+
+	public long getLockAcquisitions() {
+		return mLockAcquisitions.sum();
+	}
+
+	public long getLockWaitNanos() {
+		return mLockWaitNanos.sum();
+	}
+
+	public long getLockHoldNanos() {
+		return mLockHoldNanos.sum();
+	}
+
+	private ObjectName objectName() throws JMException {
+		return new ObjectName("io.gfeng.cash:type=CashMachine,id=" + ObjectName.quote(mId));
+	}
+
+	private static LongAdder[] newAdders(final int length) {
+		final LongAdder[] adders = new LongAdder[length];
+		for (int i = 0; i < length; i++) {
+			adders[i] = new LongAdder();
+		}
+
+		return adders;
+	}
+
+	@Override
+	public String toString() {
+		return "CashMachineMetrics [id=" + mId + ", withdrawals=" + getWithdrawals()
+				+ ", rejections=" + getRejectionsByStatus() + ", dispensed=" + getNotesDispensed()
+				+ ", duplicates=" + getDuplicateRequests()
+				+ ", lockWaitNanos=" + getLockWaitNanos() + ", lockHoldNanos=" + getLockHoldNanos() + "]";
+	}
+}
@@ -0,0 +1,77 @@
+package io.gfeng.cash;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link CashMachineMetrics}, readable by jconsole or any JMX client.
+ * @author gfeng
+ *
+ */
+public interface CashMachineMetricsMXBean {
+	/**
+	 * Return id of the cash machine.
+	 * @return {@link String}
+	 */
+	String getId();
+
+	/**
+	 * Return number of withdrawals disbursed.
+	 * @return long
+	 */
+	long getWithdrawals();
+
+	/**
+	 * Return sum of withdrawals disbursed.
+	 * @return long
+	 */
+	long getAmountDisbursed();
+
+	/**
+	 * Return number of withdrawals rejected.
+	 * @return long
+	 */
+	long getRejections();
+
+	/**
+	 * Return number of rejections of each {@link WithdrawStatus}, which is thrown as an exception
+	 * by {@link CashMachine#withdraw(io.gfeng.account.Account, int)}.
+	 * @return {@link Map} of status name to number of rejections
+	 */
+	Map<String, Long> getRejectionsByStatus();
+
+	/**
+	 * Return number of each note disbursed.
+	 * @return {@link Map} of note to number of notes
+	 */
+	Map<Integer, Long> getNotesDispensed();
+
+	/**
+	 * Return number of each note remain in the cash machine.
+	 * @return {@link Map} of note to number of notes
+	 */
+	Map<Integer, Integer> getNotesRemaining();
+
+	/**
+	 * Return number of retried requests answered by the result of their first attempt.
+	 * @return long
+	 */
+	long getDuplicateRequests();
+
+	/**
+	 * Return number of times the lock of the cash machine was taken.
+	 * @return long
+	 */
+	long getLockAcquisitions();
+
+	/**
+	 * Return nanoseconds spent waiting for the lock of the cash machine.
+	 * @return long
+	 */
+	long getLockWaitNanos();
+
+	/**
+	 * Return nanoseconds the lock of the cash machine was held.
+	 * @return long
+	 */
+	long getLockHoldNanos();
+}
@@ -0,0 +1,166 @@
+package io.gfeng.cash;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable value represents notes disbursed by a {@link CashMachine} for a withdrawal.
+ * The number of each note is held in a primitive array in the order of the cash machine's
+ * denominations, so an instance can be shared and returned without allocation.
+ *
+ * @author gfeng
+ *
+ */
+public final class Disbursement {
+	/**
+	 * Denominations of notes in ascending order. It is shared with the cash machine and never changed.
+	 */
+	final int[] mNotes;
+
+	/**
+	 * Number of each note in {@code mNotes} order. It is never changed after construction.
+	 */
+	final int[] mCounts;
+
+	/**
+	 * Construct a {@link Disbursement}. The arrays are owned by the instance after construction.
+	 * @param notes int[] denominations of notes in ascending order
+	 * @param counts int[] number of each note
+	 */
+	Disbursement(final int[] notes, final int[] counts) {
+		this.mNotes = notes;
+		this.mCounts = counts;
+	}
+
+	/**
+	 * Return number of the note disbursed.
+	 * @param note int
+	 * @return int the number of note, 0 if the note is not disbursed
+	 */
+	public int getCount(final int note) {
+		for (int i = 0; i < mNotes.length; i++) {
+			if (mNotes[i] == note)
+				return mCounts[i];
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Return number of denominations of the cash machine, disbursed or not.
+	 * @return int
+	 */
+	public int getDenominations() {
+		return mNotes.length;
+	}
+
+	/**
+	 * Return the note of slot, in ascending order of denominations.
+	 * @param slot int from 0 to {@link #getDenominations()} - 1
+	 * @return int
+	 */
+	public int getNoteAt(final int slot) {
+		return mNotes[slot];
+	}
+
+	/**
+	 * Return number of the note of slot disbursed.
+	 * @param slot int from 0 to {@link #getDenominations()} - 1
+	 * @return int
+	 */
+	public int getCountAt(final int slot) {
+		return mCounts[slot];
+	}
+
+	/**
+	 * Return the total amount of notes disbursed.
+	 * @return int
+	 */
+	public int getAmount() {
+		int amount = 0;
+		for (int i = 0; i < mNotes.length; i++) {
+			amount += mNotes[i] * mCounts[i];
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Return the total number of notes disbursed.
+	 * @return int
+	 */
+	public int getNoteCount() {
+		int count = 0;
+		for (int i = 0; i < mCounts.length; i++) {
+			count += mCounts[i];
+		}
+
+		return count;
+	}
+
+	/**
+	 * Return true if no note is disbursed.
+	 * @return boolean
+	 */
+	public boolean isEmpty() {
+		return getNoteCount() == 0;
+	}
+
+	/**
+	 * Return a new {@link Map} of the notes disbursed. The key is note, value is number of the note.
+	 * Notes which are not disbursed are not in the map.
+	 * @return {@link Map}
+	 */
+	public Map<Integer, Integer> toMap() {
+		final Map<Integer, Integer> disburse = new HashMap<>(mNotes.length);
+		for (int i = mNotes.length - 1; i >= 0; i--) {
+			if (mCounts[i] != 0)
+				disburse.put(mNotes[i], mCounts[i]);
+		}
+
+		return disburse;
+	}
+
+	/**
+	 * Return a {@link Disbursement} of the notes in a map returned by
+	 * {@link CashMachine#withdraw(Account, int)}, the reverse of {@link #toMap()}.
+	 * @param disburse {@link Map} the key is note, value is number of the note
+	 * @return {@link Disbursement}
+	 */
+	static Disbursement of(final Map<Integer, Integer> disburse) {
+		if (disburse.isEmpty())
+			return DispensePlanner.EMPTY;
+
+		final int[] notes = disburse.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+		final int[] counts = new int[notes.length];
+		for (int i = 0; i < notes.length; i++) {
+			counts[i] = disburse.get(notes[i]);
+		}
+
+		return new Disbursement(notes, counts);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(mNotes) + Arrays.hashCode(mCounts);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		final Disbursement other = (Disbursement) obj;
+
+		return Arrays.equals(mNotes, other.mNotes) && Arrays.equals(mCounts, other.mCounts);
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+}
@@ -0,0 +1,498 @@
+package io.gfeng.cash;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.gfeng.account.Account;
+import io.gfeng.cash.exception.CannotDisburseException;
+import io.gfeng.cash.exception.HigherThanMaximumException;
+import io.gfeng.cash.exception.LowBalanceException;
+import io.gfeng.cash.exception.LowThanMinimalException;
+
+/**
+ * Plans notes to disburse for a withdrawal from a set of denominations. It is shared by
+ * {@link CashMachine} implementations so they check withdrawals and disburse notes by the same rules.
+ * <li>Allow withdrawals between 20 and 250 inclusive, in multiples of 5</li>
+ * <li>Disburse smallest number of notes</li>
+ * <li>Always disburse at least one 5 note, if possible</li>
+ * <p>
+ * For other denominations, the smallest note takes the place of the 5 note.
+ * <p>
+ * The greedy cascade plans a withdrawal first. When it cannot disburse the notes in stock,
+ * the exact search finds the plan of the fewest notes, with at least one smallest note if
+ * possible. Its results are cached by the withdrawal and the notes in stock, each capped to
+ * what the withdrawal could use, so repeated searches against the same stock are a lookup.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+final class DispensePlanner {
+	private static final Logger log = Logger.getLogger(DispensePlanner.class.getName());
+
+	/**
+	 * The minimal amount of withdraw.
+	 */
+	static final int MINIMAL_WITHDRALS = 20;
+
+	/**
+	 * The maximum amount of withdraw.
+	 */
+	static final int MAXIMUM_WITHDRAWS = 250;
+
+	/**
+	 * Currency notes of denominations 5, 10, 20 and 50.
+	 */
+	static final int[] NOTES = {5, 10, 20, 50};
+
+	/**
+	 * The maximum number of denominations of a planner.
+	 */
+	static final int MAXIMUM_DENOMINATIONS = 8;
+
+	/**
+	 * The number of legal withdrawals, from 20 to 250 in multiples of 5.
+	 */
+	static final int PLAN_SIZE = (MAXIMUM_WITHDRAWS - MINIMAL_WITHDRALS) / 5 + 1;
+
+	/**
+	 * The number of cached searches of a planner. It is a power of 2.
+	 */
+	private static final int CACHE_SIZE = 4096;
+
+	/**
+	 * The planner of {@link #NOTES}.
+	 */
+	static final DispensePlanner DEFAULT = new DispensePlanner(NOTES);
+
+	/**
+	 * The {@link Disbursement} of no note.
+	 */
+	static final Disbursement EMPTY = DEFAULT.mEmpty;
+
+	/**
+	 * A cached search.
+	 */
+	private static final class Search {
+		private final long mKey;
+
+		private final WithdrawResult mResult;
+
+		private Search(final long key, final WithdrawResult result) {
+			this.mKey = key;
+			this.mResult = result;
+		}
+	}
+
+	/**
+	 * Denominations of notes in ascending order. The index of a note is its slot.
+	 */
+	private final int[] mNotes;
+
+	private final Disbursement mEmpty;
+
+	/**
+	 * Greatest common divisor of notes other than the smallest note, or 0 if there is no other note.
+	 */
+	private final int mDivisor;
+
+	/**
+	 * Number of the smallest note to take first for each legal withdrawal, so the remains can be
+	 * disbursed by the other notes, or 0 if no number can.
+	 */
+	private final int[] mFirstNotes;
+
+	/**
+	 * Number of bits of each capped note count in the key of a cached search, or 0 if the key
+	 * does not fit in a long and searches are not cached.
+	 */
+	private final int mCountBits;
+
+	/**
+	 * Compiled plan tables, indexed by bit mask of notes in stock. Each table holds the
+	 * successful {@link WithdrawResult} of the ideal {@link Disbursement} of every legal
+	 * withdrawal, or null if the withdrawal cannot be disbursed by the notes. Tables are
+	 * immutable and compiled on first use.
+	 */
+	private final AtomicReferenceArray<WithdrawResult[]> mPlans;
+
+	/**
+	 * Cached searches, indexed by hash of their key. A newer search replaces an older one in
+	 * the same index.
+	 */
+	private final AtomicReferenceArray<Search> mSearches;
+
+	private DispensePlanner(final int[] notes) {
+		this.mNotes = notes;
+		this.mEmpty = new Disbursement(notes, new int[notes.length]);
+		this.mPlans = new AtomicReferenceArray<>(1 << notes.length);
+		this.mSearches = new AtomicReferenceArray<>(CACHE_SIZE);
+
+		int divisor = 0;
+		for (int i = 1; i < notes.length; i++) {
+			divisor = gcd(divisor, notes[i]);
+		}
+		this.mDivisor = divisor;
+
+		this.mFirstNotes = new int[PLAN_SIZE];
+		for (int p = 0; p < PLAN_SIZE; p++) {
+			final int withdrawal = MINIMAL_WITHDRALS + p * 5;
+			for (int first = 1; first * notes[0] <= withdrawal; first++) {
+				if (divisor == 0 || (withdrawal - first * notes[0]) % divisor == 0) {
+					mFirstNotes[p] = first;
+					break;
+				}
+			}
+		}
+
+		final int countBits = 32 - Integer.numberOfLeadingZeros(MAXIMUM_WITHDRAWS / notes[0]);
+		this.mCountBits = 6 + countBits * notes.length < Long.SIZE ? countBits : 0;
+	}
+
+	/**
+	 * Return the planner of denominations.
+	 * @param notes int[] denominations of notes in ascending order
+	 * @throws IllegalArgumentException if the notes are not positive and ascending, or there are
+	 * more than {@link #MAXIMUM_DENOMINATIONS}.
+	 */
+	static DispensePlanner of(final int[] notes) {
+		if (Arrays.equals(notes, NOTES))
+			return DEFAULT;
+
+		if (notes.length == 0 || notes.length > MAXIMUM_DENOMINATIONS)
+			throw new IllegalArgumentException("Denominations should be 1 to " + MAXIMUM_DENOMINATIONS
+					+ " notes: " + Arrays.toString(notes));
+
+		for (int i = 0; i < notes.length; i++) {
+			if (notes[i] <= 0 || (i > 0 && notes[i] <= notes[i - 1]))
+				throw new IllegalArgumentException("Denominations should be positive and ascending: "
+						+ Arrays.toString(notes));
+		}
+
+		return new DispensePlanner(notes.clone());
+	}
+
+	/**
+	 * Check withdrawal against the rules and the account's balance.
+	 * @return {@link WithdrawStatus#SUCCESS} if the withdrawal can be planned, otherwise the reason.
+	 */
+	static WithdrawStatus check(final Account account, final int withdrawal) {
+		if (withdrawal < MINIMAL_WITHDRALS)
+			return WithdrawStatus.LOWER_THAN_MINIMAL;
+
+		if (withdrawal > MAXIMUM_WITHDRAWS)
+			return WithdrawStatus.HIGHER_THAN_MAXIMUM;
+
+		return check(withdrawal, account.checkBalance());
+	}
+
+	/**
+	 * Check withdrawal against the rules and a balance read before, without calling the account.
+	 * @return {@link WithdrawStatus#SUCCESS} if the withdrawal can be planned, otherwise the reason.
+	 */
+	static WithdrawStatus check(final int withdrawal, final double balance) {
+		if (withdrawal < MINIMAL_WITHDRALS)
+			return WithdrawStatus.LOWER_THAN_MINIMAL;
+
+		if (withdrawal > MAXIMUM_WITHDRAWS)
+			return WithdrawStatus.HIGHER_THAN_MAXIMUM;
+
+		if (withdrawal > balance)
+			return WithdrawStatus.LOW_BALANCE;
+
+		if (withdrawal % 5 != 0)
+			return WithdrawStatus.NOT_MULTIPLE_OF_FIVE;
+
+		return WithdrawStatus.SUCCESS;
+	}
+
+	/**
+	 * Return notes disbursed of the result, or throw the {@link Exception} of its rejection.
+	 * An overdrawn account disburses no note.
+	 */
+	static Disbursement disbursementOf(final WithdrawResult result)
+			throws LowThanMinimalException, HigherThanMaximumException,
+			LowBalanceException, CannotDisburseException {
+		switch (result.getStatus()) {
+		case SUCCESS:
+		case OVERDRAWN:
+			return result.getDisbursement();
+		case LOWER_THAN_MINIMAL:
+			throw new LowThanMinimalException(result.getStatus().getMessage());
+		case HIGHER_THAN_MAXIMUM:
+			throw new HigherThanMaximumException(result.getStatus().getMessage());
+		case LOW_BALANCE:
+			throw new LowBalanceException(result.getStatus().getMessage());
+		default:
+			throw new CannotDisburseException(result.getStatus().getMessage());
+		}
+	}
+
+	/**
+	 * Return denominations of notes in ascending order. The array is shared and must not be changed.
+	 */
+	int[] getNotes() {
+		return mNotes;
+	}
+
+	/**
+	 * Return the successful {@link WithdrawResult} of the ideal {@link Disbursement} of a checked
+	 * withdrawal when the notes of mask are in stock, or null if the notes cannot disburse the
+	 * withdrawal. The ideal plan does not depend on how many notes remain, only on which notes
+	 * are available.
+	 * @param withdrawal int between 20 and 250, in multiples of 5
+	 * @param mask int bit mask of notes in stock
+	 */
+	WithdrawResult plan(final int withdrawal, final int mask) {
+		WithdrawResult[] plans = mPlans.get(mask);
+		if (plans == null) {
+			plans = compile(mask);
+			mPlans.compareAndSet(mask, null, plans);
+		}
+
+		return plans[(withdrawal - MINIMAL_WITHDRALS) / 5];
+	}
+
+	/**
+	 * Return bit mask of notes in stock.
+	 * @param stock int[] number of each note in slot order
+	 */
+	int maskOf(final int[] stock) {
+		int mask = 0;
+		for (int i = 0; i < mNotes.length; i++) {
+			if (stock[i] > 0)
+				mask |= 1 << i;
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Return bit set of withdrawals the stock can disburse in full. Bit {@code i} is set if
+	 * the withdrawal of {@code 20 + 5 * i} can be disbursed.
+	 * @param stock int[] number of each note in slot order
+	 * @see CashMachine#checkDisbursable()
+	 */
+	long disbursable(final int[] stock) {
+		final int mask = maskOf(stock);
+		long disbursable = 0;
+		for (int p = 0; p < PLAN_SIZE; p++) {
+			final int withdrawal = MINIMAL_WITHDRALS + p * 5;
+			final WithdrawResult ideal = plan(withdrawal, mask);
+			if ((ideal != null && inStock(ideal.getDisbursement(), stock))
+					|| search(withdrawal, stock).isSuccess())
+				disbursable |= 1L << p;
+		}
+
+		return disbursable;
+	}
+
+	/**
+	 * Return the slot of note, or -1 if a cash machine does not hold the note.
+	 */
+	int slotOf(final int note) {
+		for (int i = 0; i < mNotes.length; i++) {
+			if (mNotes[i] == note)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Run the full search against notes remain in a cash machine when the ideal plan is not in stock.
+	 * @param account {@link Account} for logging the failure
+	 * @param withdrawal int
+	 * @param stock int[] number of each note in slot order
+	 * @return {@link WithdrawResult} of the {@link Disbursement}, or the reason if the notes
+	 * cannot disburse the withdrawal.
+	 */
+	WithdrawResult search(final Account account, final int withdrawal, final int[] stock) {
+		final WithdrawResult result = search(withdrawal, stock);
+		if (result.getStatus() == WithdrawStatus.CANNOT_DISBURSE && log.isLoggable(Level.FINE))
+			log.fine("Dispatch error. account: " + account + " withdrawal: " + withdrawal
+					+ " replenish: " + toString(stock));
+
+		return result;
+	}
+
+	/**
+	 * Return number of each note, for example {@code {5=3000, 10=1000, 20=2000, 50=1000}}.
+	 * @param stock int[] number of each note in slot order
+	 */
+	String toString(final int[] stock) {
+		final StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < mNotes.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(mNotes[i]).append('=').append(stock[i]);
+		}
+
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Return the cached search of withdrawal against stock, or search and cache it.
+	 */
+	WithdrawResult search(final int withdrawal, final int[] stock) {
+		if (mCountBits == 0)
+			return solve(withdrawal, stock);
+
+		//Notes more than the withdrawal could use do not change the plan
+		long key = (withdrawal - MINIMAL_WITHDRALS) / 5;
+		for (int i = 0; i < mNotes.length; i++) {
+			key = key << mCountBits | Math.min(stock[i], withdrawal / mNotes[i]);
+		}
+
+		long hash = key * 0x9E3779B97F4A7C15L;
+		final int index = (int) (hash ^ (hash >>> 32)) & (CACHE_SIZE - 1);
+		final Search cached = mSearches.get(index);
+		if (cached != null && cached.mKey == key)
+			return cached.mResult;
+
+		final WithdrawResult result = solve(withdrawal, stock);
+		mSearches.set(index, new Search(key, result));
+
+		return result;
+	}
+
+	/**
+	 * Plan withdrawal against stock by the greedy cascade, then by the exact search if the
+	 * cascade cannot disburse it.
+	 */
+	private WithdrawResult solve(final int withdrawal, final int[] stock) {
+		final int[] plan = new int[mNotes.length];
+		final int remain = cascade(withdrawal, stock, plan);
+		if (remain == 0)
+			return new WithdrawResult(WithdrawStatus.SUCCESS, new Disbursement(mNotes, plan));
+
+		final int[] fewest = new int[mNotes.length];
+		Arrays.fill(plan, 0);
+		int count = Integer.MAX_VALUE;
+
+		//At least one smallest note, if possible
+		for (int first = 1; first <= Math.min(stock[0], withdrawal / mNotes[0]) && first < count; first++) {
+			plan[0] = first;
+			count = fewest(withdrawal - first * mNotes[0], mNotes.length - 1, first, stock, plan, fewest, count);
+		}
+
+		if (count == Integer.MAX_VALUE) {
+			plan[0] = 0;
+			count = fewest(withdrawal, mNotes.length - 1, 0, stock, plan, fewest, count);
+		}
+
+		if (count != Integer.MAX_VALUE)
+			return new WithdrawResult(WithdrawStatus.SUCCESS, new Disbursement(mNotes, fewest));
+
+		return WithdrawResult.rejected(remain < 0 ? WithdrawStatus.NO_FIVE_NOTE : WithdrawStatus.CANNOT_DISBURSE);
+	}
+
+	/**
+	 * Depth first search of the fewest notes of slot and below for remain, larger notes first.
+	 * Slot 0 is fixed by the caller.
+	 * @return the number of notes of the best plan, which is copied to fewest
+	 */
+	private int fewest(final int remain, final int slot, final int used, final int[] stock,
+			final int[] plan, final int[] fewest, int count) {
+		if (remain == 0) {
+			if (used < count) {
+				System.arraycopy(plan, 0, fewest, 0, plan.length);
+				count = used;
+			}
+
+			return count;
+		}
+
+		if (slot == 0)
+			return count;
+
+		final int note = mNotes[slot];
+		for (int c = Math.min(stock[slot], remain / note); c >= 0; c--) {
+			//At least one more note is needed for remains
+			if (used + c + (remain - c * note > 0 ? 1 : 0) >= count)
+				continue;
+
+			plan[slot] = c;
+			count = fewest(remain - c * note, slot - 1, used + c, stock, plan, fewest, count);
+		}
+		plan[slot] = 0;
+
+		return count;
+	}
+
+	private static boolean inStock(final Disbursement plan, final int[] stock) {
+		for (int i = 0; i < plan.mCounts.length; i++) {
+			if (plan.mCounts[i] > stock[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	private WithdrawResult[] compile(final int mask) {
+		final int[] stock = new int[mNotes.length];
+		for (int i = 0; i < mNotes.length; i++) {
+			stock[i] = (mask & (1 << i)) == 0 ? 0 : Integer.MAX_VALUE;
+		}
+
+		final WithdrawResult[] plans = new WithdrawResult[PLAN_SIZE];
+		for (int p = 0; p < PLAN_SIZE; p++) {
+			final int[] plan = new int[mNotes.length];
+			plans[p] = cascade(MINIMAL_WITHDRALS + p * 5, stock, plan) == 0 ?
+					new WithdrawResult(WithdrawStatus.SUCCESS, new Disbursement(mNotes, plan)) : null;
+		}
+
+		return plans;
+	}
+
+	/**
+	 * Fill plan by number of notes in slot order for withdrawal. It is the greedy cascade of
+	 * the smallest notes, the other notes from the largest, and the smallest notes again,
+	 * limited by stock. For 5, 10, 20 and 50, it takes two 5 notes for multiples of 10 and one
+	 * 5 note for withdrawals ending with 5.
+	 * @return the amount cannot be disbursed, or -1 if no smallest note for a withdrawal which
+	 * needs one.
+	 */
+	private int cascade(final int withdrawal, final int[] stock, final int[] plan) {
+		int remain = withdrawal;
+		final int first = mFirstNotes[(withdrawal - MINIMAL_WITHDRALS) / 5];
+		final int note5;
+		if (first == 0) {
+			//No number of smallest notes leaves remains for the other notes
+			note5 = 0;
+		} else if (mDivisor != 0 && withdrawal % mDivisor == 0) {
+			//The other notes can disburse the withdrawal. Try get at least one smallest note, if possible
+			note5 = Math.min(first, stock[0]);
+		} else {
+			//The withdrawal needs smallest notes (for example 15, 195). Must get them.
+			note5 = Math.min(first, stock[0]);
+			if (note5 < first)
+				return -1;
+		}
+		plan[0] = note5;
+		remain -= note5 * mNotes[0];
+
+		//Get the largest notes, then smaller notes in remains
+		for (int i = mNotes.length - 1; i > 0 && remain > 0; i--) {
+			plan[i] = Math.min(remain / mNotes[i], stock[i]);
+			remain -= plan[i] * mNotes[i];
+		}
+
+		if (remain > 0) {
+			//Having remains, get smallest notes.
+			final int note5Append = Math.min(remain / mNotes[0], stock[0] - note5);
+			if (remain == note5Append * mNotes[0]) {
+				plan[0] += note5Append;
+				remain = 0;
+			}
+		}
+
+		return remain;
+	}
+
+	private static int gcd(final int a, final int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+}
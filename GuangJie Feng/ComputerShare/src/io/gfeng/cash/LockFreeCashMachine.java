@@ -0,0 +1,321 @@
+package io.gfeng.cash;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.gfeng.account.Account;
+import io.gfeng.account.exception.OverDrawnException;
+import io.gfeng.cash.exception.CannotDisburseException;
+import io.gfeng.cash.exception.HigherThanMaximumException;
+import io.gfeng.cash.exception.LowBalanceException;
+import io.gfeng.cash.exception.LowThanMinimalException;
+import io.gfeng.trace.OperationTracer;
+
+/**
+ * A lock free implementation of {@link CashMachine} with an unique {@link String} id.
+ * Number of each note is packed into one {@link AtomicLong}, 16 bits per note, so a cash
+ * machine holds at most 4 denominations and 65535 notes of each denomination.
+ * <p>
+ * Withdraw reads the notes, plans the disburse and compares-and-sets the notes remain,
+ * retrying when another thread changed them in between. Readers get a consistent
+ * snapshot of all notes by one read, without taking any lock.
+ * Withdrawals and replenishes are traced to the {@link OperationTracer}, if tracing is on.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class LockFreeCashMachine implements CashMachine {
+	private static final Logger log = Logger.getLogger(LockFreeCashMachine.class.getName());
+
+	/**
+	 * Number of bits for each note in the packed notes.
+	 */
+	private static final int NOTE_BITS = 16;
+
+	/**
+	 * The maximum number of each note in this cash machine.
+	 */
+	private static final int MAXIMUM_NOTES = (1 << NOTE_BITS) - 1;
+
+	/**
+	 * A {@link String} unique id of instance.
+	 */
+	private final String mId;
+
+	/**
+	 * Plans notes of the denominations of this cash machine.
+	 */
+	private final DispensePlanner mPlanner;
+
+	/**
+	 * Number of each note in the order of denominations, packed 16 bits per note
+	 * from the lowest bits.
+	 */
+	private final AtomicLong mReplenish;
+
+	/**
+	 * Recent results by request id.
+	 */
+	private final RequestCache mRequests;
+
+	/**
+	 * Construct a {@link CashMachine}
+	 * @param id {@link String}
+	 */
+	public LockFreeCashMachine(String id) {
+		this(id, DispensePlanner.NOTES);
+	}
+
+	/**
+	 * Construct a {@link CashMachine} of denominations other than 5, 10, 20 and 50.
+	 * The smallest note takes the place of the 5 note in the rules.
+	 * @param id {@link String}
+	 * @param notes int[] at most 4 denominations of notes in ascending order
+	 * @throws IllegalArgumentException if the notes are not positive and ascending, or there
+	 * are more than 4.
+	 */
+	public LockFreeCashMachine(String id, int[] notes) {
+		if (notes.length > Long.SIZE / NOTE_BITS)
+			throw new IllegalArgumentException("Lock free cash machine holds at most "
+					+ Long.SIZE / NOTE_BITS + " denominations");
+
+		this.mId = id;
+		this.mPlanner = DispensePlanner.of(notes);
+		this.mReplenish = new AtomicLong();
+		this.mRequests = new RequestCache(RequestCache.DEFAULT_CAPACITY, RequestCache.DEFAULT_TIME_TO_LIVE, null);
+	}
+
+	/**
+	 * It reads a snapshot of notes without lock.
+	 * @see CashMachine#checkNoteRemain(int)
+	 */
+	public int checkNoteRemain(final int note) {
+		final int slot = mPlanner.slotOf(note);
+
+		return slot < 0 ? 0 : count(mReplenish.get(), slot);
+	}
+
+	/**
+	 * It plans against a snapshot of notes without lock.
+	 * @see CashMachine#checkDisbursable()
+	 */
+	public long checkDisbursable() {
+		return mPlanner.disbursable(unpack(mReplenish.get()));
+	}
+
+	/**
+	 * Return false if the note is not one of the denominations,
+	 * or the cash machine would hold more than 65535 of the note.
+	 * @see CashMachine#addNoteToCashMachine(int, int)
+	 */
+	public boolean addNoteToCashMachine(final int note, final int count) {
+		final int slot = mPlanner.slotOf(note);
+		if (slot < 0)
+			return false;
+
+		while (true) {
+			final long replenish = mReplenish.get();
+			final int updateCount = count(replenish, slot) + count;
+			if (updateCount < 0 || updateCount > MAXIMUM_NOTES)
+				return false;
+
+			final long update = replenish + ((long) count << (slot * NOTE_BITS));
+			if (mReplenish.compareAndSet(replenish, update))
+				break;
+		}
+
+		final OperationTracer tracer = OperationTracer.current();
+		if (tracer != null)
+			tracer.trace(OperationTracer.REPLENISH, mId, null, note, count);
+
+		return true;
+	}
+
+	/**
+	 * @see CashMachine#checkAccountBalance(Account)
+	 */
+	public String checkAccountBalance(Account account) {
+		if (account == null)
+			throw new RuntimeException("Please input a valid account");
+
+		return ReceiptFormatter.formatBalance(account.checkBalance());
+	}
+
+	/**
+	 * @see CashMachine#withdraw(Account, int)
+	 */
+	public Map<Integer, Integer> withdraw(final Account account, final int withdrawal)
+			throws LowThanMinimalException, HigherThanMaximumException,
+			LowBalanceException, CannotDisburseException {
+		return disburse(account, withdrawal).toMap();
+	}
+
+	/**
+	 * The rules are the same as {@link CashMachineImpl#disburse(Account, int)}. The notes are
+	 * taken out by compare-and-set before the account is debited, and put back if the account
+	 * is overdrawn.
+	 * @see CashMachine#disburse(Account, int)
+	 */
+	public Disbursement disburse(final Account account, final int withdrawal)
+			throws LowThanMinimalException, HigherThanMaximumException,
+			LowBalanceException, CannotDisburseException {
+		return DispensePlanner.disbursementOf(tryWithdraw(account, withdrawal));
+	}
+
+	/**
+	 * Results are kept for 10 minutes, at most 65536 of them.
+	 * @see CashMachine#tryWithdraw(String, Account, int)
+	 */
+	public WithdrawResult tryWithdraw(final String requestId, final Account account, final int withdrawal) {
+		return mRequests.tryWithdraw(requestId, account, withdrawal, this);
+	}
+
+	/**
+	 * The requests are withdrawn one by one in order. There is no lock to share.
+	 * @see CashMachine#withdrawBatch(List)
+	 */
+	public List<WithdrawResult> withdrawBatch(final List<WithdrawRequest> requests) {
+		final WithdrawResult[] results = new WithdrawResult[requests.size()];
+		for (int i = 0; i < results.length; i++) {
+			final WithdrawRequest request = requests.get(i);
+			results[i] = tryWithdraw(request.getAccount(), request.getWithdrawal());
+		}
+
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	/**
+	 * The rules are the same as {@link #withdraw(Account, int)}.
+	 * @see CashMachine#tryWithdraw(Account, int)
+	 */
+	public WithdrawResult tryWithdraw(final Account account, final int withdrawal) {
+		//Check withdrawal
+		final WithdrawStatus status = DispensePlanner.check(account, withdrawal);
+		final WithdrawResult result = status == WithdrawStatus.SUCCESS
+				? withdrawChecked(account, withdrawal) : WithdrawResult.rejected(status);
+
+		final OperationTracer tracer = OperationTracer.current();
+		if (tracer != null) {
+			if (result.isSuccess())
+				tracer.trace(OperationTracer.DISBURSE, mId, result.getDisbursement(), withdrawal,
+						result.getDisbursement().getNoteCount());
+			else
+				tracer.trace(OperationTracer.REJECT, mId, result.getStatus(), withdrawal, 0);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Disburse a checked withdrawal and debit the account.
+	 */
+	private WithdrawResult withdrawChecked(final Account account, final int withdrawal) {
+		WithdrawResult plan;
+		long packedPlan;
+		while (true) {
+			final long replenish = mReplenish.get();
+
+			plan = mPlanner.plan(withdrawal, maskOf(replenish));
+			if (plan == null || !inStock(replenish, plan.getDisbursement())) {
+				//The ideal plan is not in stock. Search notes remain in cash machine.
+				plan = mPlanner.search(account, withdrawal, unpack(replenish));
+				if (!plan.isSuccess())
+					return plan;
+			}
+
+			packedPlan = pack(plan.getDisbursement());
+			if (mReplenish.compareAndSet(replenish, replenish - packedPlan))
+				break;
+		}
+
+		try {
+			//Deduct withdrawal from account
+			//It is safe casting from int to double
+			account.withdraw((double)withdrawal);
+		} catch (OverDrawnException e) {
+			//Put notes back to cash machine
+			mReplenish.addAndGet(packedPlan);
+			log.log(Level.WARNING, e.getMessage(), e.getStackTrace());
+
+			return WithdrawResult.rejected(WithdrawStatus.OVERDRAWN);
+		} catch (RuntimeException | Error e) {
+			//The account threw, put notes back before the exception leaves
+			mReplenish.addAndGet(packedPlan);
+			throw e;
+		}
+
+		return plan;
+	}
+
+	private static int count(final long replenish, final int slot) {
+		return (int) (replenish >>> (slot * NOTE_BITS)) & MAXIMUM_NOTES;
+	}
+
+	private int maskOf(final long replenish) {
+		int mask = 0;
+		for (int i = 0; i < mPlanner.getNotes().length; i++) {
+			if (count(replenish, i) > 0)
+				mask |= 1 << i;
+		}
+
+		return mask;
+	}
+
+	private static boolean inStock(final long replenish, final Disbursement plan) {
+		for (int i = 0; i < plan.mCounts.length; i++) {
+			if (plan.mCounts[i] > count(replenish, i))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static long pack(final Disbursement plan) {
+		long packed = 0;
+		for (int i = 0; i < plan.mCounts.length; i++) {
+			packed |= (long) plan.mCounts[i] << (i * NOTE_BITS);
+		}
+
+		return packed;
+	}
+
+	private int[] unpack(final long replenish) {
+		final int[] stock = new int[mPlanner.getNotes().length];
+		for (int i = 0; i < stock.length; i++) {
+			stock[i] = count(replenish, i);
+		}
+
+		return stock;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(mId);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		final LockFreeCashMachine other = (LockFreeCashMachine) obj;
+
+		return Objects.equals(mId, other.mId);
+	}
+
+	@Override
+	public String toString() {
+		return "CashMachine [id=" + mId + ", replenish="
+				+ mPlanner.toString(unpack(mReplenish.get())) + "]";
+	}
+}
@@ -0,0 +1,103 @@
+package io.gfeng.cash;
+
+import java.text.DecimalFormat;
+
+/**
+ * Formats balances in the pattern "£###,###.##", for example {@code £1,234,567.28} of
+ * {@code 1234567.28}, into a {@link StringBuilder} the caller reuses. Digits are written directly, so formatting a balance allocates nothing but the
+ * buffer's growth.
+ * <p>
+ * Balances are rounded half even to pence, the same as {@link DecimalFormat}. A balance too
+ * close to half a penny to round reliably from a double, too large, or not finite is handed
+ * to a {@link DecimalFormat} of the calling thread, so the output is always the same as
+ * {@link DecimalFormat}.
+ * <p>
+ * It keeps state only in thread locals, so it is safe to call from many threads without lock.
+ *
+ * @author gfeng
+ *
+ */
+public final class ReceiptFormatter {
+	private static final char POUND = '£';
+
+	/**
+	 * The largest balance formatted directly. Above it a penny is too close to the precision of a double.
+	 */
+	private static final double DIRECT_LIMIT = 1e10;
+
+	/**
+	 * Distance to half a penny within which a balance is rounded by {@link DecimalFormat}.
+	 */
+	private static final double TIE_MARGIN = 1e-3;
+
+	private static final ThreadLocal<DecimalFormat> FORMATTER = ThreadLocal.withInitial(
+			() -> new DecimalFormat(POUND + "###,###.##"));
+
+	private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(
+			() -> new StringBuilder(32));
+
+	private ReceiptFormatter() {
+	}
+
+	/**
+	 * Return balance formatted, for example {@code £123,567.28} of {@code 123567.28}.
+	 * @param balance double
+	 * @return {@link String}
+	 */
+	public static String formatBalance(final double balance) {
+		final StringBuilder buffer = BUFFER.get();
+		buffer.setLength(0);
+
+		return appendBalance(buffer, balance).toString();
+	}
+
+	/**
+	 * Append balance formatted to out, for example {@code £123,567.28} of {@code 123567.28}.
+	 * @param out {@link StringBuilder}
+	 * @param balance double
+	 * @return out
+	 */
+	public static StringBuilder appendBalance(final StringBuilder out, final double balance) {
+		final double magnitude = Math.abs(balance);
+		if (!(magnitude < DIRECT_LIMIT))
+			return out.append(FORMATTER.get().format(balance));
+
+		final double scaled = magnitude * 100;
+		final double floor = Math.floor(scaled);
+		final double fraction = scaled - floor;
+		if (Math.abs(fraction - 0.5) < TIE_MARGIN)
+			return out.append(FORMATTER.get().format(balance));
+
+		final long pence = (long) floor + (fraction > 0.5 ? 1 : 0);
+
+		//A negative balance, even -0.0, has the sign
+		if (Double.doubleToRawLongBits(balance) < 0)
+			out.append('-');
+		out.append(POUND);
+		appendGrouped(out, pence / 100);
+
+		final int cents = (int) (pence % 100);
+		if (cents != 0) {
+			out.append('.').append((char) ('0' + cents / 10));
+			if (cents % 10 != 0)
+				out.append((char) ('0' + cents % 10));
+		}
+
+		return out;
+	}
+
+	/**
+	 * Append a non-negative number with a comma between each group of 3 digits.
+	 */
+	private static void appendGrouped(final StringBuilder out, final long value) {
+		if (value < 1000) {
+			out.append((int) value);
+			return;
+		}
+
+		appendGrouped(out, value / 1000);
+		final int group = (int) (value % 1000);
+		out.append(',').append((char) ('0' + group / 100)).append((char) ('0' + group / 10 % 10))
+				.append((char) ('0' + group % 10));
+	}
+}
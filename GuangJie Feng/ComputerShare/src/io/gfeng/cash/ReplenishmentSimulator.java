@@ -0,0 +1,257 @@
+package io.gfeng.cash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A Monte-Carlo simulator of note loads. It runs trials of withdrawals against the notes of
+ * a load by the same {@link DispensePlanner} as {@link CashMachineImpl}, and reports how soon
+ * each note runs out and how often the notes cannot disburse a withdrawal.
+ * <p>
+ * Withdrawals are drawn uniformly from a table, where a frequent amount is repeated, or a
+ * recorded sequence is replayed in order from a random position. Accounts are not simulated:
+ * a withdrawal rejected by the rules before notes are planned does not change the notes, so
+ * such withdrawals are dropped from the table.
+ * <p>
+ * Trials run in parallel on a {@link ForkJoinPool}. A trial owns its notes as an {@code int[]},
+ * so a step takes no lock and boxes nothing. Trial {@code k} of every load draws the same
+ * random withdrawals, so loads are compared on the same demand.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class ReplenishmentSimulator {
+	/**
+	 * Number of steps below which a task runs its trials without splitting.
+	 */
+	private static final long GRAIN_STEPS = 1 << 16;
+
+	private final DispensePlanner mPlanner;
+
+	/**
+	 * Legal withdrawals to draw from, or to replay in order.
+	 */
+	private final int[] mWithdrawals;
+
+	private final boolean mReplay;
+
+	private final ForkJoinPool mPool;
+
+	/**
+	 * Construct a simulator of the default notes 5, 10, 20 and 50 on the common pool.
+	 * @param withdrawals int[] withdrawals to draw from uniformly, or a recorded sequence to replay
+	 * @param replay boolean true to replay withdrawals in order
+	 * @throws IllegalArgumentException if there is no legal withdrawal
+	 */
+	public ReplenishmentSimulator(final int[] withdrawals, final boolean replay) {
+		this(DispensePlanner.NOTES, withdrawals, replay, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Construct a simulator.
+	 * @param notes int[] denominations of notes in ascending order
+	 * @param withdrawals int[] withdrawals to draw from uniformly, or a recorded sequence to replay
+	 * @param replay boolean true to replay withdrawals in order
+	 * @param pool {@link ForkJoinPool} to run trials
+	 * @throws IllegalArgumentException if the notes are not positive and ascending, there are
+	 * more than 8, or there is no legal withdrawal
+	 */
+	public ReplenishmentSimulator(final int[] notes, final int[] withdrawals, final boolean replay,
+			final ForkJoinPool pool) {
+		this.mPlanner = DispensePlanner.of(notes);
+		this.mWithdrawals = Arrays.stream(withdrawals).filter(ReplenishmentSimulator::isLegal).toArray();
+		this.mReplay = replay;
+		this.mPool = pool;
+
+		if (mWithdrawals.length == 0)
+			throw new IllegalArgumentException("No withdrawal between " + DispensePlanner.MINIMAL_WITHDRALS
+					+ " and " + DispensePlanner.MAXIMUM_WITHDRAWS + " in multiples of 5");
+	}
+
+	/**
+	 * Return denominations of notes in ascending order.
+	 * @return int[]
+	 */
+	public int[] getNotes() {
+		return mPlanner.getNotes().clone();
+	}
+
+	/**
+	 * Run trials of each load, and return their outcomes in the order of loads.
+	 * @param loads {@link List} of number of each note, in the order of denominations
+	 * @param trials int number of trials of each load
+	 * @param horizon int number of withdrawals requested in each trial
+	 * @param seed long seed of the random withdrawals
+	 * @return {@link List} of {@link SimulationOutcome}
+	 * @throws IllegalArgumentException if a load does not match the denominations
+	 */
+	public List<SimulationOutcome> run(final List<int[]> loads, final int trials, final int horizon,
+			final long seed) {
+		final int notes = mPlanner.getNotes().length;
+		final int[][] table = new int[loads.size()][];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = loads.get(i).clone();
+			if (table[i].length != notes)
+				throw new IllegalArgumentException("Load " + Arrays.toString(table[i])
+						+ " does not match notes " + Arrays.toString(mPlanner.getNotes()));
+		}
+
+		//Each trial writes its own record: disbursed, cannot disburse, then when each note ran out
+		final int stride = notes + 2;
+		if ((long) table.length * trials * stride > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Too many trials " + table.length + " x " + trials);
+		final long[] records = new long[table.length * trials * stride];
+		mPool.invoke(new Trials(table, trials, horizon, seed, records, 0, table.length * trials));
+
+		final List<SimulationOutcome> outcomes = new ArrayList<>(table.length);
+		for (int l = 0; l < table.length; l++) {
+			long disbursed = 0;
+			long cannotDisburse = 0;
+			final long[] exhaustedSum = new long[notes];
+			final int[] exhaustedTrials = new int[notes];
+
+			for (int k = 0; k < trials; k++) {
+				final int offset = (l * trials + k) * stride;
+				disbursed += records[offset];
+				cannotDisburse += records[offset + 1];
+				for (int i = 0; i < notes; i++) {
+					if (records[offset + 2 + i] >= 0) {
+						exhaustedSum[i] += records[offset + 2 + i];
+						exhaustedTrials[i]++;
+					}
+				}
+			}
+
+			outcomes.add(new SimulationOutcome(mPlanner.getNotes(), table[l], trials, horizon,
+					disbursed, cannotDisburse, exhaustedSum, exhaustedTrials));
+		}
+
+		return outcomes;
+	}
+
+	/**
+	 * Trials from {@code from} to {@code to}, where trial {@code k} of load {@code l} is
+	 * {@code l * trials + k}.
+	 */
+	private final class Trials extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[][] mLoads;
+
+		private final int mTrials;
+
+		private final int mHorizon;
+
+		private final long mSeed;
+
+		private final long[] mRecords;
+
+		private final int mFrom;
+
+		private final int mTo;
+
+		private Trials(final int[][] loads, final int trials, final int horizon, final long seed,
+				final long[] records, final int from, final int to) {
+			this.mLoads = loads;
+			this.mTrials = trials;
+			this.mHorizon = horizon;
+			this.mSeed = seed;
+			this.mRecords = records;
+			this.mFrom = from;
+			this.mTo = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (mTo - mFrom > 1 && (long) (mTo - mFrom) * mHorizon > GRAIN_STEPS) {
+				final int middle = (mFrom + mTo) >>> 1;
+				invokeAll(new Trials(mLoads, mTrials, mHorizon, mSeed, mRecords, mFrom, middle),
+						new Trials(mLoads, mTrials, mHorizon, mSeed, mRecords, middle, mTo));
+				return;
+			}
+
+			final int stride = mPlanner.getNotes().length + 2;
+			for (int t = mFrom; t < mTo; t++) {
+				final SplittableRandom random = new SplittableRandom(mSeed + t % mTrials);
+				simulate(mLoads[t / mTrials], mHorizon, random, mRecords, t * stride);
+			}
+		}
+	}
+
+	/**
+	 * Run one trial, and write its record from offset.
+	 */
+	private void simulate(final int[] load, final int horizon, final SplittableRandom random,
+			final long[] records, final int offset) {
+		final int[] stock = load.clone();
+		final int[] withdrawals = mWithdrawals;
+		int mask = mPlanner.maskOf(stock);
+		long disbursed = 0;
+		long cannotDisburse = 0;
+		int next = mReplay ? random.nextInt(withdrawals.length) : 0;
+
+		for (int i = 0; i < stock.length; i++) {
+			records[offset + 2 + i] = stock[i] == 0 ? 0 : -1;
+		}
+
+		for (int step = 0; step < horizon; step++) {
+			if (mask == 0) {
+				//No note left, the rest cannot be disbursed
+				cannotDisburse += horizon - step;
+				break;
+			}
+
+			final int withdrawal;
+			if (mReplay) {
+				withdrawal = withdrawals[next];
+				if (++next == withdrawals.length)
+					next = 0;
+			} else {
+				withdrawal = withdrawals[random.nextInt(withdrawals.length)];
+			}
+
+			WithdrawResult plan = mPlanner.plan(withdrawal, mask);
+			if (plan == null || !inStock(plan.getDisbursement(), stock)) {
+				plan = mPlanner.search(withdrawal, stock);
+				if (!plan.isSuccess()) {
+					cannotDisburse++;
+					continue;
+				}
+			}
+
+			final int[] counts = plan.getDisbursement().mCounts;
+			for (int i = 0; i < stock.length; i++) {
+				if (counts[i] != 0) {
+					stock[i] -= counts[i];
+					if (stock[i] == 0) {
+						mask &= ~(1 << i);
+						records[offset + 2 + i] = step + 1;
+					}
+				}
+			}
+			disbursed++;
+		}
+
+		records[offset] = disbursed;
+		records[offset + 1] = cannotDisburse;
+	}
+
+	private static boolean inStock(final Disbursement plan, final int[] stock) {
+		for (int i = 0; i < stock.length; i++) {
+			if (plan.mCounts[i] > stock[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	private static boolean isLegal(final int withdrawal) {
+		return withdrawal >= DispensePlanner.MINIMAL_WITHDRALS && withdrawal <= DispensePlanner.MAXIMUM_WITHDRAWS
+				&& withdrawal % 5 == 0;
+	}
+}
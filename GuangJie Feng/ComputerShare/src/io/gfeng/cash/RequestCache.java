@@ -0,0 +1,163 @@
+package io.gfeng.cash;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.gfeng.account.Account;
+
+/**
+ * Recent results of withdrawals by request id, so a request retried after a timeout gets the
+ * result of the first attempt instead of withdrawing again. A duplicate returns the same
+ * {@link WithdrawResult} without checking, planning or debiting the account. A duplicate which
+ * arrives while the first attempt is running waits for its result.
+ * <p>
+ * Results are kept for a time to live, and at most a capacity of them, the oldest evicted first.
+ * Eviction is done by the threads which add results, so there is no cleaning thread. Rejections
+ * are kept too, so a retry of a rejected request is rejected the same way until it expires.
+ * A request which throws is removed, so it can be retried.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+final class RequestCache {
+	static final int DEFAULT_CAPACITY = 1 << 16;
+
+	static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toNanos(10);
+
+	/**
+	 * A request and its result, completed when the first attempt returns.
+	 */
+	private static final class Entry {
+		private final String mRequestId;
+
+		private final Account mAccount;
+
+		private final int mWithdrawal;
+
+		private final long mCreated;
+
+		private final CompletableFuture<WithdrawResult> mResult = new CompletableFuture<>();
+
+		private Entry(final String requestId, final Account account, final int withdrawal, final long created) {
+			this.mRequestId = requestId;
+			this.mAccount = account;
+			this.mWithdrawal = withdrawal;
+			this.mCreated = created;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+	/**
+	 * Entries in the order they were added.
+	 */
+	private final Queue<Entry> mOrder = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger mSize = new AtomicInteger();
+
+	private final int mCapacity;
+
+	private final long mTimeToLive;
+
+	/**
+	 * Counters of duplicates, or null.
+	 */
+	private final CashMachineMetrics mMetrics;
+
+	/**
+	 * Construct a cache.
+	 * @param capacity int most results kept, more than the withdrawals in progress at once
+	 * @param timeToLive long nanoseconds a result is kept
+	 * @param metrics {@link CashMachineMetrics} to count duplicates, or null
+	 */
+	RequestCache(final int capacity, final long timeToLive, final CashMachineMetrics metrics) {
+		if (capacity <= 0 || timeToLive <= 0)
+			throw new IllegalArgumentException("capacity " + capacity + " and time to live "
+					+ timeToLive + " should be greater than zero");
+
+		this.mCapacity = capacity;
+		this.mTimeToLive = timeToLive;
+		this.mMetrics = metrics;
+	}
+
+	/**
+	 * Return the result of the request. The first attempt withdraws by
+	 * {@link CashMachine#tryWithdraw(Account, int)} of cashMachine.
+	 * @throws IllegalArgumentException if the request id was used by a request of another
+	 * account or withdrawal
+	 */
+	WithdrawResult tryWithdraw(final String requestId, final Account account, final int withdrawal,
+			final CashMachine cashMachine) {
+		final long now = System.nanoTime();
+		final Entry entry = new Entry(requestId, account, withdrawal, now);
+
+		while (true) {
+			final Entry previous = mEntries.putIfAbsent(requestId, entry);
+			if (previous == null)
+				break;
+
+			if (now - previous.mCreated < mTimeToLive)
+				return duplicate(previous, account, withdrawal);
+
+			//Expired but not evicted yet
+			if (mEntries.replace(requestId, previous, entry))
+				break;
+		}
+
+		mOrder.add(entry);
+		mSize.incrementAndGet();
+		evict(now);
+
+		final WithdrawResult result;
+		try {
+			result = cashMachine.tryWithdraw(account, withdrawal);
+		} catch (RuntimeException | Error e) {
+			mEntries.remove(requestId, entry);
+			entry.mResult.completeExceptionally(e);
+			throw e;
+		}
+		entry.mResult.complete(result);
+
+		return result;
+	}
+
+	/**
+	 * Return number of results kept.
+	 * @return int
+	 */
+	int size() {
+		return mSize.get();
+	}
+
+	private WithdrawResult duplicate(final Entry previous, final Account account, final int withdrawal) {
+		if (previous.mWithdrawal != withdrawal || !previous.mAccount.equals(account))
+			throw new IllegalArgumentException("Request " + previous.mRequestId + " was a withdrawal of "
+					+ previous.mWithdrawal + " from " + previous.mAccount);
+
+		if (mMetrics != null)
+			mMetrics.recordDuplicate();
+
+		return previous.mResult.join();
+	}
+
+	/**
+	 * Evict the oldest entries while there are more than capacity, or the oldest has expired.
+	 */
+	private void evict(final long now) {
+		Entry oldest;
+		while ((oldest = mOrder.peek()) != null
+				&& (mSize.get() > mCapacity || now - oldest.mCreated >= mTimeToLive)) {
+			oldest = mOrder.poll();
+			if (oldest == null)
+				return;
+
+			mEntries.remove(oldest.mRequestId, oldest);
+			mSize.decrementAndGet();
+		}
+	}
+}
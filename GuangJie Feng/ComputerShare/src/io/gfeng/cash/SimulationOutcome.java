@@ -0,0 +1,156 @@
+package io.gfeng.cash;
+
+/**
+ * An immutable outcome of the trials of one note load by {@link ReplenishmentSimulator}.
+ * Times are counted in withdrawals requested from the start of a trial.
+ * @author gfeng
+ *
+ */
+public final class SimulationOutcome {
+	private final int[] mNotes;
+
+	private final int[] mLoad;
+
+	private final int mTrials;
+
+	private final int mHorizon;
+
+	private final long mDisbursed;
+
+	private final long mCannotDisburse;
+
+	/**
+	 * Sum of the withdrawals until each note ran out, over the trials it ran out in.
+	 */
+	private final long[] mExhaustedSum;
+
+	/**
+	 * Number of trials each note ran out in.
+	 */
+	private final int[] mExhaustedTrials;
+
+	SimulationOutcome(final int[] notes, final int[] load, final int trials, final int horizon,
+			final long disbursed, final long cannotDisburse, final long[] exhaustedSum,
+			final int[] exhaustedTrials) {
+		this.mNotes = notes;
+		this.mLoad = load;
+		this.mTrials = trials;
+		this.mHorizon = horizon;
+		this.mDisbursed = disbursed;
+		this.mCannotDisburse = cannotDisburse;
+		this.mExhaustedSum = exhaustedSum;
+		this.mExhaustedTrials = exhaustedTrials;
+	}
+
+	/**
+	 * Return number of each note loaded, in the order of denominations.
+	 * @return int[]
+	 */
+	public int[] getLoad() {
+		return mLoad.clone();
+	}
+
+	/**
+	 * Return cash loaded, the sum of notes.
+	 * @return long
+	 */
+	public long getCash() {
+		long cash = 0;
+		for (int i = 0; i < mNotes.length; i++) {
+			cash += (long) mNotes[i] * mLoad[i];
+		}
+
+		return cash;
+	}
+
+	public int getTrials() {
+		return mTrials;
+	}
+
+	/**
+	 * Return number of withdrawals requested in each trial.
+	 * @return int
+	 */
+	public int getHorizon() {
+		return mHorizon;
+	}
+
+	/**
+	 * Return the share of withdrawals disbursed in full.
+	 * @return double between 0 and 1
+	 */
+	public double getDisbursedRate() {
+		return (double) mDisbursed / ((long) mTrials * mHorizon);
+	}
+
+	/**
+	 * Return the share of withdrawals the notes could not disburse, which
+	 * {@link CashMachine#withdraw(io.gfeng.account.Account, int)} throws as
+	 * {@link io.gfeng.cash.exception.CannotDisburseException}.
+	 * @return double between 0 and 1
+	 */
+	public double getCannotDisburseRate() {
+		return (double) mCannotDisburse / ((long) mTrials * mHorizon);
+	}
+
+	/**
+	 * Return the share of trials the note ran out in.
+	 * @param note int
+	 * @return double between 0 and 1, 0 if the note is not one of the denominations
+	 */
+	public double getExhaustedRate(final int note) {
+		final int slot = slotOf(note);
+
+		return slot < 0 ? 0 : (double) mExhaustedTrials[slot] / mTrials;
+	}
+
+	/**
+	 * Return the mean number of withdrawals until the note ran out, over the trials it ran out in.
+	 * @param note int
+	 * @return double, or -1 if the note never ran out
+	 */
+	public double getMeanTimeToExhaust(final int note) {
+		final int slot = slotOf(note);
+		if (slot < 0 || mExhaustedTrials[slot] == 0)
+			return -1;
+
+		return (double) mExhaustedSum[slot] / mExhaustedTrials[slot];
+	}
+
+	private int slotOf(final int note) {
+		for (int i = 0; i < mNotes.length; i++) {
+			if (mNotes[i] == note)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return the outcome, for example
+	 * {@code load {5=3000, 10=1000, 20=2000, 50=1000} cannot disburse 0.12% exhausted {5=8031 (100%), ...}}.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("load {");
+		for (int i = 0; i < mNotes.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(mNotes[i]).append('=').append(mLoad[i]);
+		}
+		sb.append(String.format("} cannot disburse %.2f%% exhausted {", getCannotDisburseRate() * 100));
+
+		for (int i = 0; i < mNotes.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(mNotes[i]).append('=');
+			if (mExhaustedTrials[i] == 0)
+				sb.append("never");
+			else
+				sb.append(String.format("%.0f (%.0f%%)", getMeanTimeToExhaust(mNotes[i]),
+						getExhaustedRate(mNotes[i]) * 100));
+		}
+
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,41 @@
+package io.gfeng.cash;
+
+import io.gfeng.account.Account;
+
+/**
+ * An immutable request of withdrawal from an {@link Account}, for 
+ * {@link CashMachine#withdrawBatch(java.util.List)}.
+ * @author gfeng
+ *
+ */
+public final class WithdrawRequest {
+	private final Account account;
+	
+	private final int withdrawal;
+	
+	/**
+	 * Construct a request.
+	 * @param account {@link Account}
+	 * @param withdrawal int the amount to withdraw
+	 */
+	public WithdrawRequest(Account account, int withdrawal) {
+		if (account == null)
+			throw new IllegalArgumentException("Please input a valid account");
+		
+		this.account = account;
+		this.withdrawal = withdrawal;
+	}
+	
+	public Account getAccount() {
+		return account;
+	}
+	
+	public int getWithdrawal() {
+		return withdrawal;
+	}
+
+	@Override
+	public String toString() {
+		return "WithdrawRequest [account=" + account + ", withdrawal=" + withdrawal + "]";
+	}
+}
@@ -0,0 +1,66 @@
+package io.gfeng.cash;
+
+/**
+ * An immutable result of a withdrawal, the {@link WithdrawStatus} and the {@link Disbursement}.
+ * A rejected result has no note. Results are shared: every {@link Disbursement} has its
+ * successful result, and every rejection has one result.
+ * @author gfeng
+ *
+ */
+public final class WithdrawResult {
+	/**
+	 * Rejected results, indexed by {@link WithdrawStatus#ordinal()}.
+	 */
+	private static final WithdrawResult[] REJECTIONS;
+	
+	static {
+		final WithdrawStatus[] statuses = WithdrawStatus.values();
+		REJECTIONS = new WithdrawResult[statuses.length];
+		for (WithdrawStatus status : statuses) {
+			REJECTIONS[status.ordinal()] = new WithdrawResult(status, DispensePlanner.EMPTY);
+		}
+	}
+	
+	private final WithdrawStatus mStatus;
+	
+	private final Disbursement mDisbursement;
+	
+	WithdrawResult(final WithdrawStatus status, final Disbursement disbursement) {
+		this.mStatus = status;
+		this.mDisbursement = disbursement;
+	}
+	
+	/**
+	 * Return the shared result of a rejection.
+	 * @param status {@link WithdrawStatus} other than {@link WithdrawStatus#SUCCESS}
+	 * @return {@link WithdrawResult}
+	 */
+	static WithdrawResult rejected(final WithdrawStatus status) {
+		return REJECTIONS[status.ordinal()];
+	}
+	
+	/**
+	 * Return true if notes are disbursed.
+	 * @return boolean
+	 */
+	public boolean isSuccess() {
+		return mStatus == WithdrawStatus.SUCCESS;
+	}
+	
+	public WithdrawStatus getStatus() {
+		return mStatus;
+	}
+	
+	/**
+	 * Return notes disbursed, empty if the withdrawal is rejected.
+	 * @return {@link Disbursement}
+	 */
+	public Disbursement getDisbursement() {
+		return mDisbursement;
+	}
+
+	@Override
+	public String toString() {
+		return "WithdrawResult [status=" + mStatus + ", disbursement=" + mDisbursement + "]";
+	}
+}
@@ -0,0 +1,62 @@
+package io.gfeng.cash;
+
+/**
+ * The outcome of a withdrawal from a {@link CashMachine}.
+ * @author gfeng
+ *
+ */
+public enum WithdrawStatus {
+	/**
+	 * Notes are disbursed and the account is debited.
+	 */
+	SUCCESS("Success"),
+	
+	/**
+	 * The withdrawal is lower than minimal.
+	 */
+	LOWER_THAN_MINIMAL("Minimal withdraw is " + DispensePlanner.MINIMAL_WITHDRALS),
+	
+	/**
+	 * The withdrawal is higher than maximum.
+	 */
+	HIGHER_THAN_MAXIMUM("Maximum withdraw is " + DispensePlanner.MAXIMUM_WITHDRAWS),
+	
+	/**
+	 * The withdrawal is higher than the account's balance.
+	 */
+	LOW_BALANCE("Your balance is low."),
+	
+	/**
+	 * The withdrawal is not in multiples of 5.
+	 */
+	NOT_MULTIPLE_OF_FIVE("Withdraw should be 5 times"),
+	
+	/**
+	 * The withdrawal ends with 5, but there is no 5 note.
+	 */
+	NO_FIVE_NOTE("No 5 pound note available"),
+	
+	/**
+	 * The notes remain cannot disburse the withdrawal.
+	 */
+	CANNOT_DISBURSE("Dispatch error. Cannot withdraw this amount"),
+	
+	/**
+	 * The account was overdrawn when it was debited. No note is disbursed.
+	 */
+	OVERDRAWN("Your account is overdrawn.");
+	
+	private final String message;
+	
+	private WithdrawStatus(String message) {
+		this.message = message;
+	}
+	
+	/**
+	 * Return the reason of the status for customer.
+	 * @return {@link String}
+	 */
+	public String getMessage() {
+		return message;
+	}
+}
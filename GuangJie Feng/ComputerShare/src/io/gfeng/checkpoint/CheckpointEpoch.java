@@ -0,0 +1,126 @@
+package io.gfeng.checkpoint;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Epochs which cut the operations on cash machines and accounts for a consistent checkpoint,
+ * without stopping them.
+ * <p>
+ * An operation pins the current epoch by {@link #enter()} before it changes anything, and
+ * unpins it by {@link #exit()}. An operation over a cash machine and an account, such as a
+ * withdrawal, pins once, so both see the same epoch; nested pins of the same thread return the
+ * epoch of the outermost one. A checkpoint starts a new epoch, then waits until every operation
+ * of the previous epoch has exited. Operations of the new epoch are not blocked.
+ * <p>
+ * Each object keeps its state at the cut: the first change of a newer epoch copies the state
+ * before it changes, and a change of the previous epoch which comes after is applied to both
+ * the state and the copy. So once the previous epoch has drained, the state at the cut is the
+ * copy if the object was changed in the new epoch, otherwise the state itself. A change of the
+ * previous epoch is never refused for the copy: if it takes more than the copy has, which the
+ * new epoch supplied, the shortfall is charged to the new epoch.
+ * <p>
+ * Pinned operations are counted in striped counters of each parity of epoch, so threads
+ * pinning and unpinning rarely share a cache line.
+ *
+ * @author gfeng
+ *
+ */
+public final class CheckpointEpoch {
+	/**
+	 * Number of stripes of counters, a power of two.
+	 */
+	private static final int STRIPES = 64;
+
+	/**
+	 * Distance between stripes, so each is in its own cache line.
+	 */
+	private static final int PADDING = 16;
+
+	private static volatile long epoch;
+
+	/**
+	 * Number of operations pinned, of even and of odd epochs.
+	 */
+	private static final AtomicLongArray[] active = {
+			new AtomicLongArray(STRIPES * PADDING), new AtomicLongArray(STRIPES * PADDING)};
+
+	private static final ThreadLocal<Pin> pins = ThreadLocal.withInitial(Pin::new);
+
+	/**
+	 * The pin of a thread.
+	 */
+	private static final class Pin {
+		private final int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+
+		private long epoch;
+
+		private int depth;
+	}
+
+	private CheckpointEpoch() {
+	}
+
+	/**
+	 * Pin the current epoch to the calling thread, and return it.
+	 * Each call must be followed by {@link #exit()} in a finally block.
+	 * @return long
+	 */
+	public static long enter() {
+		final Pin pin = pins.get();
+		if (pin.depth++ > 0)
+			return pin.epoch;
+
+		while (true) {
+			final long current = epoch;
+			final AtomicLongArray counts = active[(int) current & 1];
+			counts.incrementAndGet(pin.stripe);
+
+			//A checkpoint which started meanwhile does not wait for this operation
+			if (epoch == current) {
+				pin.epoch = current;
+
+				return current;
+			}
+			counts.decrementAndGet(pin.stripe);
+		}
+	}
+
+	/**
+	 * Unpin the epoch of the last {@link #enter()}.
+	 */
+	public static void exit() {
+		final Pin pin = pins.get();
+		if (--pin.depth == 0)
+			active[(int) pin.epoch & 1].decrementAndGet(pin.stripe);
+	}
+
+	/**
+	 * Return the current epoch.
+	 * @return long
+	 */
+	public static long current() {
+		return epoch;
+	}
+
+	/**
+	 * Start a new epoch, and return it after every operation of the previous epoch has exited.
+	 * It is called by one checkpoint at a time.
+	 * @throws IllegalStateException if the calling thread has pinned an epoch
+	 */
+	static long advance() {
+		if (pins.get().depth > 0)
+			throw new IllegalStateException("A checkpoint cannot start inside an operation");
+
+		final long previous = epoch;
+		epoch = previous + 1;
+
+		final AtomicLongArray counts = active[(int) previous & 1];
+		for (int s = 0; s < STRIPES; s++) {
+			while (counts.get(s * PADDING) != 0) {
+				Thread.yield();
+			}
+		}
+
+		return previous + 1;
+	}
+}
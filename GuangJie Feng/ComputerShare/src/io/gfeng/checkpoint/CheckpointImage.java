@@ -0,0 +1,303 @@
+package io.gfeng.checkpoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.gfeng.account.AccountImpl;
+import io.gfeng.account.PenceAccount;
+import io.gfeng.cash.CashMachineImpl;
+import io.gfeng.journal.TransactionJournal;
+
+/**
+ * A checkpoint written by {@link CheckpointWriter}, mapped into memory. Opening reads the
+ * header and the cash machines only, and accounts are restored one by one when they are first
+ * used, by a binary search of the sorted account index in the mapped file. So a restart is
+ * near instant however many accounts there are.
+ * <p>
+ * The file is big endian:
+ * <pre>
+ * header   := magic:long epoch:long created:long machines:int accounts:int
+ *             indexOffset:long keysOffset:long length:long, padded to 64 bytes
+ * machine  := idLength:short id:byte[idLength] notes:byte (note:int count:int)[notes]
+ * index    := (balance:long keyOffset:int)[accounts], sorted by account number
+ * key      := length:byte accountNumber:byte[length]
+ * </pre>
+ * Ids and account numbers are UTF-8, balances are in pence, and account numbers are sorted by
+ * their unsigned bytes. The file is mapped as one buffer, so it is at most 2 GB, about 100
+ * million accounts.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class CheckpointImage implements Closeable {
+	/**
+	 * The magic number in the header, "GFCKPT01".
+	 */
+	static final long MAGIC = 0x4746434b50543031L;
+
+	static final int HEADER_BYTES = 64;
+
+	/**
+	 * Bytes of an entry of the account index.
+	 */
+	static final int INDEX_BYTES = 12;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer buffer;
+
+	private final long epoch;
+
+	private final long created;
+
+	private final int accounts;
+
+	private final int indexOffset;
+
+	private final int keysOffset;
+
+	/**
+	 * Notes and counts of each cash machine by id.
+	 */
+	private final Map<String, int[][]> machines = new LinkedHashMap<>();
+
+	private CheckpointImage(final FileChannel channel, final MappedByteBuffer buffer, final Path file)
+			throws IOException {
+		this.channel = channel;
+		this.buffer = buffer;
+
+		if (buffer.limit() < HEADER_BYTES || buffer.getLong(0) != MAGIC)
+			throw new IOException(file + " is not a checkpoint");
+
+		this.epoch = buffer.getLong(8);
+		this.created = buffer.getLong(16);
+		final int machineCount = buffer.getInt(24);
+		this.accounts = buffer.getInt(28);
+		final long index = buffer.getLong(32);
+		final long keys = buffer.getLong(40);
+		final long length = buffer.getLong(48);
+		if (length != buffer.limit() || index < HEADER_BYTES || index + (long) accounts * INDEX_BYTES != keys
+				|| keys > length)
+			throw new IOException(file + " is a truncated or corrupt checkpoint");
+		this.indexOffset = (int) index;
+		this.keysOffset = (int) keys;
+
+		int p = HEADER_BYTES;
+		for (int m = 0; m < machineCount; m++) {
+			final byte[] id = new byte[buffer.getShort(p)];
+			p += 2;
+			for (int i = 0; i < id.length; i++) {
+				id[i] = buffer.get(p++);
+			}
+
+			final int[][] notes = new int[2][buffer.get(p++)];
+			for (int i = 0; i < notes[0].length; i++) {
+				notes[0][i] = buffer.getInt(p);
+				notes[1][i] = buffer.getInt(p + 4);
+				p += 8;
+			}
+			machines.put(new String(id, StandardCharsets.UTF_8), notes);
+		}
+	}
+
+	/**
+	 * Map a checkpoint.
+	 * @param file {@link Path}
+	 * @return {@link CheckpointImage}
+	 * @throws IOException if the file cannot be read, or is not a complete checkpoint
+	 */
+	public static CheckpointImage open(final Path file) throws IOException {
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is larger than 2 GB");
+
+			return new CheckpointImage(channel, channel.map(MapMode.READ_ONLY, 0, channel.size()), file);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return the epoch of the checkpoint.
+	 * @return long
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Return the time the checkpoint was written, in milliseconds since the epoch.
+	 * @return long
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Return ids of the cash machines.
+	 * @return {@link Set}
+	 */
+	public Set<String> getMachineIds() {
+		return Collections.unmodifiableSet(machines.keySet());
+	}
+
+	/**
+	 * Return number of accounts.
+	 * @return int
+	 */
+	public int getAccountCount() {
+		return accounts;
+	}
+
+	/**
+	 * Return a cash machine of the id filled in with its notes, or null if it is not in the
+	 * checkpoint.
+	 * @param id {@link String}
+	 * @param journal {@link TransactionJournal}, or null. The notes are recorded as replenishes.
+	 * @return {@link CashMachineImpl}
+	 */
+	public CashMachineImpl restoreMachine(final String id, final TransactionJournal journal) {
+		final int[][] notes = machines.get(id);
+		if (notes == null)
+			return null;
+
+		final CashMachineImpl cashMachine = new CashMachineImpl(id, notes[0], journal);
+		for (int i = 0; i < notes[0].length; i++) {
+			if (notes[1][i] != 0)
+				cashMachine.addNoteToCashMachine(notes[0][i], notes[1][i]);
+		}
+
+		return cashMachine;
+	}
+
+	/**
+	 * Return the account of the account number with its balance, or null if it is not in the
+	 * checkpoint.
+	 * @param accountNumber {@link String}
+	 * @param journal {@link TransactionJournal}, or null
+	 * @return {@link AccountImpl}
+	 */
+	public AccountImpl restoreAccount(final String accountNumber, final TransactionJournal journal) {
+		final int i = indexOf(accountNumber.getBytes(StandardCharsets.UTF_8));
+
+		return i < 0 ? null : new AccountImpl(accountNumber, PenceAccount.toPounds(balanceAt(i)), journal);
+	}
+
+	/**
+	 * Return balance in pence of the account number, or -1 if it is not in the checkpoint.
+	 * @param accountNumber {@link String}
+	 * @return long
+	 */
+	public long getBalance(final String accountNumber) {
+		final int i = indexOf(accountNumber.getBytes(StandardCharsets.UTF_8));
+
+		return i < 0 ? -1 : balanceAt(i);
+	}
+
+	/**
+	 * Return balance in pence of the account at i of the index.
+	 */
+	long balanceAt(final int i) {
+		return buffer.getLong(indexOffset + i * INDEX_BYTES);
+	}
+
+	/**
+	 * Return the account number at i of the index.
+	 */
+	byte[] keyAt(final int i) {
+		final int p = keysOffset + buffer.getInt(indexOffset + i * INDEX_BYTES + 8);
+		final byte[] key = new byte[buffer.get(p) & 0xFF];
+		for (int k = 0; k < key.length; k++) {
+			key[k] = buffer.get(p + 1 + k);
+		}
+
+		return key;
+	}
+
+	/**
+	 * Return index of the account number, or a negative number if it is not in the checkpoint.
+	 */
+	private int indexOf(final byte[] key) {
+		int low = 0;
+		int high = accounts - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int compare = compare(middle, key);
+			if (compare < 0)
+				low = middle + 1;
+			else if (compare > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Compare the account number at i of the index with key by unsigned bytes.
+	 */
+	private int compare(final int i, final byte[] key) {
+		final int p = keysOffset + buffer.getInt(indexOffset + i * INDEX_BYTES + 8);
+		final int length = buffer.get(p) & 0xFF;
+		for (int k = 0; k < Math.min(length, key.length); k++) {
+			final int compare = (buffer.get(p + 1 + k) & 0xFF) - (key[k] & 0xFF);
+			if (compare != 0)
+				return compare;
+		}
+
+		return length - key.length;
+	}
+
+	/**
+	 * Compare account numbers by unsigned bytes, the order of the index.
+	 */
+	static int compare(final byte[] a, final byte[] b) {
+		for (int k = 0; k < Math.min(a.length, b.length); k++) {
+			final int compare = (a[k] & 0xFF) - (b[k] & 0xFF);
+			if (compare != 0)
+				return compare;
+		}
+
+		return a.length - b.length;
+	}
+
+	/**
+	 * Close the file. The memory stays mapped until the image is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "Checkpoint [epoch=" + epoch + ", machines=" + machines.size() + ", accounts=" + accounts + "]";
+	}
+
+	/**
+	 * Put the header padded to {@link #HEADER_BYTES}, for {@link CheckpointWriter}.
+	 */
+	static void putHeader(final ByteBuffer header, final long epoch, final long created, final int machines,
+			final int accounts, final long indexOffset, final long keysOffset, final long length) {
+		header.putLong(MAGIC).putLong(epoch).putLong(created).putInt(machines).putInt(accounts)
+				.putLong(indexOffset).putLong(keysOffset).putLong(length);
+		while (header.position() < HEADER_BYTES) {
+			header.put((byte) 0);
+		}
+	}
+}
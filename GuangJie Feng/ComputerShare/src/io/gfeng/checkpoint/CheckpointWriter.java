@@ -0,0 +1,191 @@
+package io.gfeng.checkpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import io.gfeng.account.AccountImpl;
+import io.gfeng.cash.CashMachineImpl;
+
+/**
+ * Writes a consistent checkpoint of cash machines and accounts while they keep serving, in the
+ * format of {@link CheckpointImage}.
+ * <p>
+ * A checkpoint starts a new {@link CheckpointEpoch} and waits for the operations of the previous
+ * epoch to finish, then reads the notes and balances at the cut from each object under its own
+ * lock, one at a time. No lock is held over more than one object, and operations of the new
+ * epoch go on meanwhile. The file is written aside and forced, then moved over the previous
+ * checkpoint, so a crash leaves either checkpoint whole.
+ * <p>
+ * Accounts of a base checkpoint which are not among the accounts given are copied from it,
+ * so accounts restored lazily keep their balances without being restored to write them.
+ * One checkpoint is written at a time.
+ *
+ * @author gfeng
+ *
+ */
+public final class CheckpointWriter {
+	private static final Object lock = new Object();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The longest account number in bytes.
+	 */
+	private static final int MAXIMUM_ACCOUNT = 255;
+
+	/**
+	 * An account number and its balance at the cut.
+	 */
+	private static final class Entry {
+		private final byte[] key;
+
+		private final long balance;
+
+		private Entry(final byte[] key, final long balance) {
+			this.key = key;
+			this.balance = balance;
+		}
+	}
+
+	private CheckpointWriter() {
+	}
+
+	/**
+	 * Write a checkpoint of the cash machines and accounts to file, and return its epoch.
+	 * @param file {@link Path}
+	 * @param machines {@link Collection} of {@link CashMachineImpl}
+	 * @param accounts {@link Collection} of {@link AccountImpl}, each account number once
+	 * @param base {@link CheckpointImage} the accounts were restored from, or null
+	 * @return long
+	 * @throws IOException if the file cannot be written, or is larger than 2 GB
+	 * @throws IllegalStateException if it is called inside an operation
+	 */
+	public static long write(final Path file, final Collection<CashMachineImpl> machines,
+			final Collection<AccountImpl> accounts, final CheckpointImage base) throws IOException {
+		synchronized (lock) {
+			final long epoch = CheckpointEpoch.advance();
+
+			final List<byte[]> ids = new ArrayList<>(machines.size());
+			final List<Map<Integer, Integer>> notes = new ArrayList<>(machines.size());
+			long machineBytes = 0;
+			for (CashMachineImpl cashMachine : machines) {
+				final byte[] id = cashMachine.getId().getBytes(StandardCharsets.UTF_8);
+				ids.add(id);
+				notes.add(cashMachine.getCheckpointNotes(epoch));
+				machineBytes += 2 + id.length + 1 + 8 * notes.get(notes.size() - 1).size();
+			}
+
+			final List<Entry> entries = new ArrayList<>(accounts.size());
+			for (AccountImpl account : accounts) {
+				final byte[] key = account.getAccountNumber().getBytes(StandardCharsets.UTF_8);
+				if (key.length > MAXIMUM_ACCOUNT)
+					throw new IllegalArgumentException("Account number " + account.getAccountNumber()
+							+ " is longer than " + MAXIMUM_ACCOUNT + " bytes");
+				entries.add(new Entry(key, account.getCheckpointBalance(epoch)));
+			}
+			entries.sort((a, b) -> CheckpointImage.compare(a.key, b.key));
+
+			final List<Entry> merged = base == null ? entries : merge(entries, base);
+
+			final long indexOffset = CheckpointImage.HEADER_BYTES + machineBytes;
+			final long keysOffset = indexOffset + (long) merged.size() * CheckpointImage.INDEX_BYTES;
+			long length = keysOffset;
+			for (Entry entry : merged) {
+				length += 1 + entry.key.length;
+			}
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("Checkpoint of " + merged.size() + " accounts is larger than 2 GB");
+
+			final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				CheckpointImage.putHeader(buffer, epoch, System.currentTimeMillis(), ids.size(), merged.size(),
+						indexOffset, keysOffset, length);
+
+				for (int m = 0; m < ids.size(); m++) {
+					final byte[] id = ids.get(m);
+					ensure(channel, buffer, 3 + id.length);
+					buffer.putShort((short) id.length).put(id).put((byte) notes.get(m).size());
+					for (Map.Entry<Integer, Integer> note : notes.get(m).entrySet()) {
+						ensure(channel, buffer, 8);
+						buffer.putInt(note.getKey()).putInt(note.getValue());
+					}
+				}
+
+				int keyOffset = 0;
+				for (Entry entry : merged) {
+					ensure(channel, buffer, CheckpointImage.INDEX_BYTES);
+					buffer.putLong(entry.balance).putInt(keyOffset);
+					keyOffset += 1 + entry.key.length;
+				}
+
+				for (Entry entry : merged) {
+					ensure(channel, buffer, 1 + entry.key.length);
+					buffer.put((byte) entry.key.length).put(entry.key);
+				}
+
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			return epoch;
+		}
+	}
+
+	/**
+	 * Merge sorted entries with the accounts of base which are not among them.
+	 */
+	private static List<Entry> merge(final List<Entry> entries, final CheckpointImage base) {
+		final List<Entry> merged = new ArrayList<>(entries.size() + base.getAccountCount());
+		int e = 0;
+		for (int b = 0; b < base.getAccountCount(); b++) {
+			final byte[] key = base.keyAt(b);
+			int compare = -1;
+			while (e < entries.size() && (compare = CheckpointImage.compare(entries.get(e).key, key)) < 0) {
+				merged.add(entries.get(e++));
+			}
+
+			if (e < entries.size() && compare == 0)
+				merged.add(entries.get(e++));
+			else
+				merged.add(new Entry(key, base.balanceAt(b)));
+		}
+
+		while (e < entries.size()) {
+			merged.add(entries.get(e++));
+		}
+
+		return merged;
+	}
+
+	/**
+	 * Write the buffer if it has less than length bytes remaining.
+	 */
+	private static void ensure(final FileChannel channel, final ByteBuffer buffer, final int length)
+			throws IOException {
+		if (buffer.remaining() >= length)
+			return;
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,30 @@
+package io.gfeng.journal;
+
+/**
+ * A listener receives records of a {@link TransactionJournal} in sequence order when the
+ * journal is replayed.
+ * @author gfeng
+ *
+ */
+public interface JournalListener {
+	/**
+	 * A deposit to or a withdrawal from an account.
+	 * @param sequence long sequence of the record
+	 * @param type byte {@link TransactionJournal#DEPOSIT} or {@link TransactionJournal#WITHDRAW}
+	 * @param accountNumber {@link String}
+	 * @param amount long amount in pence
+	 * @param balance long balance in pence after the transaction
+	 */
+	public void onAccount(long sequence, byte type, String accountNumber, long amount, long balance);
+
+	/**
+	 * Notes deducted from or filled in a cash machine.
+	 * @param sequence long sequence of the record
+	 * @param type byte {@link TransactionJournal#NOTE_DEDUCTION} or {@link TransactionJournal#NOTE_REPLENISH}
+	 * @param machineId {@link String}
+	 * @param notes int[] denominations of notes
+	 * @param counts int[] number of each note deducted or filled in
+	 * @param remaining int[] number of each note in the cash machine after the transaction
+	 */
+	public void onNotes(long sequence, byte type, String machineId, int[] notes, int[] counts, int[] remaining);
+}
@@ -0,0 +1,108 @@
+package io.gfeng.journal;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link JournalListener} recovers the last balance of each account and the last notes of
+ * each cash machine from a {@link TransactionJournal}. Records carry the state after each
+ * change, so the last record of an account or a cash machine is its state.
+ * <pre>
+ * final JournalRecovery recovery = JournalRecovery.recover(file);
+ * account.deposit(recovery.getBalance("01001") / 100.0);
+ * cashMachine.addNoteToCashMachine(5, recovery.getNoteRemain("cashmachine-001", 5));
+ * </pre>
+ * @author gfeng
+ *
+ */
+public final class JournalRecovery implements JournalListener {
+	/**
+	 * Balance in pence of each account.
+	 */
+	private final Map<String, Long> balances = new HashMap<>();
+
+	/**
+	 * Number of each note of each cash machine. The key is note, value is number of the note.
+	 */
+	private final Map<String, Map<Integer, Integer>> notes = new HashMap<>();
+
+	private long lastSequence;
+
+	/**
+	 * Replay the journal in file, and return the recovered state.
+	 * @param file {@link Path}
+	 * @return {@link JournalRecovery}
+	 * @throws IOException
+	 */
+	public static JournalRecovery recover(final Path file) throws IOException {
+		final JournalRecovery recovery = new JournalRecovery();
+		TransactionJournal.replay(file, recovery);
+
+		return recovery;
+	}
+
+	public void onAccount(long sequence, byte type, String accountNumber, long amount, long balance) {
+		balances.put(accountNumber, balance);
+		lastSequence = sequence;
+	}
+
+	public void onNotes(long sequence, byte type, String machineId, int[] notes, int[] counts, int[] remaining) {
+		final Map<Integer, Integer> replenish = this.notes.computeIfAbsent(machineId, id -> new HashMap<>());
+		for (int i = 0; i < notes.length; i++) {
+			replenish.put(notes[i], remaining[i]);
+		}
+		lastSequence = sequence;
+	}
+
+	/**
+	 * Return account numbers in the journal.
+	 * @return {@link Set}
+	 */
+	public Set<String> getAccountNumbers() {
+		return Collections.unmodifiableSet(balances.keySet());
+	}
+
+	/**
+	 * Return balance in pence of the account, 0 if the account is not in the journal.
+	 * @param accountNumber {@link String}
+	 * @return long
+	 */
+	public long getBalance(final String accountNumber) {
+		final Long balance = balances.get(accountNumber);
+
+		return balance == null ? 0 : balance;
+	}
+
+	/**
+	 * Return cash machine ids in the journal.
+	 * @return {@link Set}
+	 */
+	public Set<String> getMachineIds() {
+		return Collections.unmodifiableSet(notes.keySet());
+	}
+
+	/**
+	 * Return number of note remains in the cash machine, 0 if it is not in the journal.
+	 * @param machineId {@link String}
+	 * @param note int
+	 * @return int
+	 */
+	public int getNoteRemain(final String machineId, final int note) {
+		final Map<Integer, Integer> replenish = notes.get(machineId);
+		final Integer count = replenish == null ? null : replenish.get(note);
+
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Return the sequence of the last record replayed.
+	 * @return long
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+}
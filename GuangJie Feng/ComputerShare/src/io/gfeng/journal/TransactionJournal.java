@@ -0,0 +1,467 @@
+package io.gfeng.journal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append only binary journal of deposits, withdrawals and note deductions.
+ * <p>
+ * A writer appends a record under its own lock, so records of an account or a cash machine are
+ * in the order of the changes, and gets the sequence of the record. It then waits outside its
+ * lock with {@link #await(long)} until the record is durable. With group commit, a flusher
+ * thread writes all records appended since the last flush by one {@link FileChannel} write and
+ * one force, so many threads share the cost of one fsync. Without group commit, every append
+ * writes and forces the file itself.
+ * <p>
+ * Each record is {@code int length, long sequence, byte type, short length and chars of subject,
+ * payload, int crc32}. Records carry the balance or notes after the change, so replaying them
+ * again is harmless. A torn record at the end of the file is dropped on open.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class TransactionJournal implements Closeable {
+	/**
+	 * A deposit to an account.
+	 */
+	public static final byte DEPOSIT = 1;
+
+	/**
+	 * A withdrawal from an account.
+	 */
+	public static final byte WITHDRAW = 2;
+
+	/**
+	 * Notes deducted from a cash machine.
+	 */
+	public static final byte NOTE_DEDUCTION = 3;
+
+	/**
+	 * Notes filled in a cash machine.
+	 */
+	public static final byte NOTE_REPLENISH = 4;
+
+	private static final int INITIAL_BUFFER = 64 * 1024;
+
+	/**
+	 * The longest subject in chars, and the most notes of a record, as their lengths are read back.
+	 */
+	private static final int MAXIMUM_SUBJECT = Short.MAX_VALUE;
+
+	private static final int MAXIMUM_NOTES = Byte.MAX_VALUE;
+
+	/**
+	 * The shortest and the longest record after its length, so a torn or corrupted length ends the
+	 * journal instead of allocating for it.
+	 */
+	private static final int MINIMAL_RECORD = 8 + 1 + 2 + 4;
+
+	private static final int MAXIMUM_RECORD = 8 + 1 + 2 + 2 * MAXIMUM_SUBJECT + 1 + 12 * MAXIMUM_NOTES + 4;
+
+	private final FileChannel channel;
+
+	private final boolean groupCommit;
+
+	private final ReentrantLock lock;
+
+	/**
+	 * Signalled when records are appended, or the journal is closed.
+	 */
+	private final Condition appended;
+
+	/**
+	 * Signalled when records are durable, or the flusher failed.
+	 */
+	private final Condition flushed;
+
+	private final CRC32 crc;
+
+	/**
+	 * Records appended but not written. Guarded by lock.
+	 */
+	private ByteBuffer current;
+
+	/**
+	 * Records being written by the flusher. It is owned by the flusher.
+	 */
+	private ByteBuffer flushing;
+
+	/**
+	 * Sequence of the next record. Guarded by lock.
+	 */
+	private long nextSequence;
+
+	/**
+	 * Sequence of the last record which is durable.
+	 */
+	private volatile long durableSequence;
+
+	/**
+	 * The failure of writing, after which nothing is durable. Guarded by lock.
+	 */
+	private IOException failure;
+
+	/**
+	 * Guarded by lock.
+	 */
+	private boolean closed;
+
+	private final Thread flusher;
+
+	private TransactionJournal(final FileChannel channel, final long lastSequence, final boolean groupCommit) {
+		this.channel = channel;
+		this.groupCommit = groupCommit;
+		this.lock = new ReentrantLock();
+		this.appended = lock.newCondition();
+		this.flushed = lock.newCondition();
+		this.crc = new CRC32();
+		this.current = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+		this.flushing = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+		this.nextSequence = lastSequence + 1;
+		this.durableSequence = lastSequence;
+
+		if (groupCommit) {
+			this.flusher = new Thread(this::flush, "journal-flusher");
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		} else {
+			this.flusher = null;
+		}
+	}
+
+	/**
+	 * Open the journal in file with group commit, creating it if it does not exist.
+	 * @param file {@link Path}
+	 * @return {@link TransactionJournal}
+	 * @throws IOException
+	 */
+	public static TransactionJournal open(final Path file) throws IOException {
+		return open(file, true);
+	}
+
+	/**
+	 * Open the journal in file, creating it if it does not exist. A torn record at the end
+	 * of the file is dropped, and new records follow the last valid one.
+	 * @param file {@link Path}
+	 * @param groupCommit boolean true to batch records of many threads into one write and force
+	 * @return {@link TransactionJournal}
+	 * @throws IOException
+	 */
+	public static TransactionJournal open(final Path file, final boolean groupCommit) throws IOException {
+		final long[] end = Files.exists(file) ? replay(file, null) : new long[2];
+
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		channel.truncate(end[1]);
+		channel.position(end[1]);
+
+		return new TransactionJournal(channel, end[0], groupCommit);
+	}
+
+	/**
+	 * Replay records of the journal in file to listener, in sequence order. It stops at the
+	 * first torn or corrupted record.
+	 * @param file {@link Path}
+	 * @param listener {@link JournalListener}, or null to only find the end of the journal
+	 * @return the sequence of the last valid record and the length of the valid journal
+	 * @throws IOException
+	 */
+	public static long[] replay(final Path file, final JournalListener listener) throws IOException {
+		long lastSequence = 0;
+		long length = 0;
+
+		try (InputStream stream = Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(stream, INITIAL_BUFFER))) {
+			final CRC32 check = new CRC32();
+			byte[] record = new byte[256];
+
+			while (true) {
+				final int size;
+				try {
+					size = in.readInt();
+					if (size < MINIMAL_RECORD || size > MAXIMUM_RECORD)
+						break;
+					if (size > record.length)
+						record = new byte[Math.max(record.length * 2, size)];
+					in.readFully(record, 0, size);
+				} catch (EOFException e) {
+					break;
+				}
+
+				check.reset();
+				check.update(record, 0, size - 4);
+				final ByteBuffer buffer = ByteBuffer.wrap(record, 0, size);
+				if (buffer.getInt(size - 4) != (int) check.getValue())
+					break;
+
+				lastSequence = buffer.getLong();
+				if (listener != null)
+					decode(buffer, lastSequence, listener);
+				length += 4 + size;
+			}
+		}
+
+		return new long[] {lastSequence, length};
+	}
+
+	/**
+	 * Append a deposit or withdrawal record. Call it while holding the account's lock, so the
+	 * records of the account are in the order of the changes.
+	 * @param type byte {@link #DEPOSIT} or {@link #WITHDRAW}
+	 * @param accountNumber {@link String}
+	 * @param amount long amount in pence
+	 * @param balance long balance in pence after the transaction
+	 * @return long the sequence of the record, for {@link #await(long)}
+	 */
+	public long append(final byte type, final String accountNumber, final long amount, final long balance) {
+		lock.lock();
+
+		try {
+			final int start = begin(type, accountNumber, 16);
+			current.putLong(amount).putLong(balance);
+
+			return end(start);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Append a note deduction or replenish record. Call it while holding the cash machine's lock,
+	 * so the records of the cash machine are in the order of the changes.
+	 * @param type byte {@link #NOTE_DEDUCTION} or {@link #NOTE_REPLENISH}
+	 * @param machineId {@link String}
+	 * @param notes int[] denominations of notes
+	 * @param counts int[] number of each note deducted or filled in
+	 * @param remaining int[] number of each note in the cash machine after the transaction
+	 * @return long the sequence of the record, for {@link #await(long)}
+	 */
+	public long appendNotes(final byte type, final String machineId, final int[] notes,
+			final int[] counts, final int[] remaining) {
+		lock.lock();
+
+		try {
+			final int start = begin(type, machineId, 1 + 12 * notes.length);
+			current.put((byte) notes.length);
+			for (int i = 0; i < notes.length; i++) {
+				current.putInt(notes[i]).putInt(counts[i]).putInt(remaining[i]);
+			}
+
+			return end(start);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the record of sequence is durable.
+	 * @param sequence long
+	 * @throws UncheckedIOException if the journal failed to write.
+	 */
+	public void await(final long sequence) {
+		if (durableSequence >= sequence)
+			return;
+
+		lock.lock();
+
+		try {
+			while (durableSequence < sequence && failure == null) {
+				flushed.awaitUninterruptibly();
+			}
+
+			if (durableSequence < sequence)
+				throw new UncheckedIOException("Journal failed to write", failure);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the sequence of the last record which is durable.
+	 * @return long
+	 */
+	public long getDurableSequence() {
+		return durableSequence;
+	}
+
+	/**
+	 * Write records appended, and close the journal.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+
+		try {
+			closed = true;
+			appended.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		if (flusher != null) {
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		channel.close();
+	}
+
+	/**
+	 * Write the head of a record of payload bytes. It is guarded by lock.
+	 * @return the position of the record in {@code current}
+	 */
+	private int begin(final byte type, final String subject, final int payload) {
+		if (closed)
+			throw new IllegalStateException("Journal is closed");
+		if (failure != null)
+			throw new UncheckedIOException("Journal failed to write", failure);
+		if (subject.length() > MAXIMUM_SUBJECT || payload > 1 + 12 * MAXIMUM_NOTES)
+			throw new IllegalArgumentException("Record of " + subject + " is longer than " + MAXIMUM_RECORD);
+
+		final int size = 8 + 1 + 2 + 2 * subject.length() + payload + 4;
+		if (current.remaining() < 4 + size) {
+			final ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(current.capacity() * 2, 4 + size));
+			current.flip();
+			grown.put(current);
+			current = grown;
+		}
+
+		final int start = current.position();
+		current.putInt(size).putLong(nextSequence).put(type).putShort((short) subject.length());
+		for (int i = 0; i < subject.length(); i++) {
+			current.putChar(subject.charAt(i));
+		}
+
+		return start;
+	}
+
+	/**
+	 * Write crc32 of the record, and write the record if there is no group commit.
+	 * It is guarded by lock.
+	 * @return the sequence of the record
+	 */
+	private long end(final int start) {
+		final ByteBuffer record = current.duplicate();
+		record.limit(current.position()).position(start + 4);
+		crc.reset();
+		crc.update(record);
+		current.putInt((int) crc.getValue());
+
+		final long sequence = nextSequence++;
+		if (groupCommit) {
+			appended.signal();
+		} else {
+			try {
+				current.flip();
+				write(current);
+				current.clear();
+				durableSequence = sequence;
+			} catch (IOException e) {
+				failure = e;
+				throw new UncheckedIOException("Journal failed to write", e);
+			}
+		}
+
+		return sequence;
+	}
+
+	/**
+	 * The group commit loop of the flusher thread.
+	 */
+	private void flush() {
+		while (true) {
+			final long sequence;
+			lock.lock();
+
+			try {
+				while (current.position() == 0 && !closed) {
+					appended.awaitUninterruptibly();
+				}
+
+				if (current.position() == 0)
+					return;
+
+				final ByteBuffer swap = flushing;
+				flushing = current;
+				current = swap;
+				sequence = nextSequence - 1;
+			} finally {
+				lock.unlock();
+			}
+
+			IOException error = null;
+			try {
+				flushing.flip();
+				write(flushing);
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				flushing.clear();
+			}
+
+			lock.lock();
+
+			try {
+				if (error == null)
+					durableSequence = sequence;
+				else
+					failure = error;
+				flushed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			if (error != null)
+				return;
+		}
+	}
+
+	private void write(final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	private static void decode(final ByteBuffer buffer, final long sequence, final JournalListener listener) {
+		final byte type = buffer.get();
+		final char[] chars = new char[buffer.getShort()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = buffer.getChar();
+		}
+		final String subject = new String(chars);
+
+		if (type == DEPOSIT || type == WITHDRAW) {
+			listener.onAccount(sequence, type, subject, buffer.getLong(), buffer.getLong());
+		} else {
+			final int length = buffer.get();
+			final int[] notes = new int[length];
+			final int[] counts = new int[length];
+			final int[] remaining = new int[length];
+			for (int i = 0; i < length; i++) {
+				notes[i] = buffer.getInt();
+				counts[i] = buffer.getInt();
+				remaining[i] = buffer.getInt();
+			}
+			listener.onNotes(sequence, type, subject, notes, counts, remaining);
+		}
+	}
+}
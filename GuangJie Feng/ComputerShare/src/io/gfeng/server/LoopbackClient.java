@@ -0,0 +1,222 @@
+package io.gfeng.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A blocking client of {@link WithdrawServer} for tests and benchmarks. Requests are put into a
+ * direct buffer and sent by {@link #flush()}, or when the buffer is full, so a caller pipelines
+ * requests by sending many before receiving. {@link #receive()} reads the next response, whose
+ * fields are kept until the next receive.
+ * Its instance is not thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class LoopbackClient implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The most requests in flight of {@link #pipeline(byte[][], int[], int, long)}. Their responses
+	 * fit in the buffers of the server and the client, so neither blocks writing to the other.
+	 */
+	public static final int MAXIMUM_DEPTH = 1024;
+
+	private final SocketChannel channel;
+
+	private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * Responses received, in read mode.
+	 */
+	private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private int id;
+
+	private byte status;
+
+	private long balance;
+
+	private final int[] notes = new int[8];
+
+	private final int[] counts = new int[8];
+
+	private int noteCount;
+
+	/**
+	 * Connect to a server.
+	 * @param address {@link InetSocketAddress}
+	 * @throws IOException
+	 */
+	public LoopbackClient(final InetSocketAddress address) throws IOException {
+		this.channel = SocketChannel.open(address);
+		this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		this.in.flip();
+	}
+
+	/**
+	 * Send a request. It is buffered until {@link #flush()} or the buffer is full.
+	 * @param op byte {@link Protocol#WITHDRAW}, {@link Protocol#DEPOSIT} or {@link Protocol#BALANCE}
+	 * @param id int returned in the response
+	 * @param account byte[] US-ASCII account number
+	 * @param amount long pounds of a withdrawal, pence of a deposit
+	 * @throws IOException
+	 */
+	public void send(final byte op, final int id, final byte[] account, final long amount) throws IOException {
+		if (out.remaining() < 4 + Protocol.MAXIMUM_REQUEST)
+			flush();
+
+		Protocol.putRequest(out, op, id, account, amount);
+	}
+
+	/**
+	 * Send a request of account number.
+	 * @see #send(byte, int, byte[], long)
+	 */
+	public void send(final byte op, final int id, final String account, final long amount) throws IOException {
+		send(op, id, account.getBytes(StandardCharsets.US_ASCII), amount);
+	}
+
+	/**
+	 * Write requests buffered.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * Read the next response. Requests buffered are flushed before waiting for the server.
+	 * @return byte status of the response
+	 * @throws IOException
+	 */
+	public byte receive() throws IOException {
+		fill(4);
+		final int length = in.getInt();
+		fill(length);
+
+		id = in.getInt();
+		status = in.get();
+		balance = in.getLong();
+		noteCount = in.get();
+		for (int i = 0; i < noteCount; i++) {
+			notes[i] = in.getInt();
+			counts[i] = in.getInt();
+		}
+
+		return status;
+	}
+
+	/**
+	 * Return id of the last response.
+	 * @return int
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Return status of the last response.
+	 * @return byte
+	 */
+	public byte getStatus() {
+		return status;
+	}
+
+	/**
+	 * Return balance in pence of the last response.
+	 * @return long
+	 */
+	public long getBalance() {
+		return balance;
+	}
+
+	/**
+	 * Return notes disbursed by the last response. The key is note, value is number of the note.
+	 * @return {@link Map}
+	 */
+	public Map<Integer, Integer> getNotes() {
+		final Map<Integer, Integer> disburse = new LinkedHashMap<>();
+		for (int i = 0; i < noteCount; i++) {
+			disburse.put(notes[i], counts[i]);
+		}
+
+		return disburse;
+	}
+
+	/**
+	 * Keep depth requests in flight for nanos, and return number of responses. Requests are
+	 * withdrawals of amounts from accounts in turn.
+	 * @param accounts byte[][] US-ASCII account numbers
+	 * @param amounts int[] withdrawals
+	 * @param depth int number of requests in flight, at most {@link #MAXIMUM_DEPTH}
+	 * @param nanos long duration
+	 * @return long
+	 * @throws IOException
+	 */
+	public long pipeline(final byte[][] accounts, final int[] amounts, final int depth, final long nanos)
+			throws IOException {
+		if (depth <= 0 || depth > MAXIMUM_DEPTH)
+			throw new IllegalArgumentException("Depth " + depth + " is not between 1 and " + MAXIMUM_DEPTH);
+
+		final long deadline = System.nanoTime() + nanos;
+		long sent = 0;
+		long received = 0;
+
+		for (; sent < depth; sent++) {
+			send(Protocol.WITHDRAW, (int) sent, accounts[(int) (sent % accounts.length)],
+					amounts[(int) (sent % amounts.length)]);
+		}
+		flush();
+
+		while (System.nanoTime() < deadline) {
+			receive();
+			received++;
+			send(Protocol.WITHDRAW, (int) sent, accounts[(int) (sent % accounts.length)],
+					amounts[(int) (sent % amounts.length)]);
+			sent++;
+		}
+
+		for (; received < sent; received++) {
+			receive();
+		}
+
+		return received;
+	}
+
+	/**
+	 * Read until at least length bytes are in the response buffer. Requests buffered are sent
+	 * first, so requests sent while responses were buffered go in one write.
+	 */
+	private void fill(final int length) throws IOException {
+		if (in.remaining() >= length)
+			return;
+
+		if (out.position() > 0)
+			flush();
+
+		in.compact();
+		while (in.position() < length) {
+			if (channel.read(in) < 0)
+				throw new EOFException("Server closed the connection");
+		}
+		in.flip();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,100 @@
+package io.gfeng.server;
+
+import java.nio.ByteBuffer;
+
+import io.gfeng.cash.WithdrawStatus;
+
+/**
+ * The binary protocol of {@link WithdrawServer}. Every message is a frame of a 4 byte length
+ * followed by that many bytes, all numbers big endian.
+ * <pre>
+ * request  := length:int op:byte id:int amount:long accountLength:byte account:byte[accountLength]
+ * response := length:int id:int status:byte balance:long notes:byte (note:int count:int)[notes]
+ * </pre>
+ * The amount of {@link #WITHDRAW} is in pounds, the amount of {@link #DEPOSIT} in pence, and
+ * {@link #BALANCE} ignores it. The account number is US-ASCII. The balance of a response is in
+ * pence after the operation. Notes disbursed are listed by a successful withdrawal only.
+ * <p>
+ * The status of a withdrawal is the ordinal of its {@link WithdrawStatus}. A client may send
+ * many requests before reading responses; they are answered in order on each connection.
+ *
+ * @author gfeng
+ *
+ */
+public final class Protocol {
+	/**
+	 * Withdraw amount pounds from the account.
+	 */
+	public static final byte WITHDRAW = 1;
+
+	/**
+	 * Deposit amount pence to the account, which is opened if it is new.
+	 */
+	public static final byte DEPOSIT = 2;
+
+	/**
+	 * Read the balance of the account.
+	 */
+	public static final byte BALANCE = 3;
+
+	/**
+	 * Status of a deposit or balance which succeeded. It is {@link WithdrawStatus#SUCCESS}.
+	 */
+	public static final byte SUCCESS = (byte) WithdrawStatus.SUCCESS.ordinal();
+
+	/**
+	 * Status of a request to an account which is not open.
+	 */
+	public static final byte UNKNOWN_ACCOUNT = 0x40;
+
+	/**
+	 * Status of a request which is malformed, for example a deposit which is not positive.
+	 */
+	public static final byte BAD_REQUEST = 0x41;
+
+	/**
+	 * The longest account number.
+	 */
+	public static final int MAXIMUM_ACCOUNT = 64;
+
+	/**
+	 * Length of a request before its account number.
+	 */
+	static final int REQUEST_HEADER = 1 + 4 + 8 + 1;
+
+	/**
+	 * The longest request frame after its length.
+	 */
+	static final int MAXIMUM_REQUEST = REQUEST_HEADER + MAXIMUM_ACCOUNT;
+
+	/**
+	 * Length of a response before its notes.
+	 */
+	static final int RESPONSE_HEADER = 4 + 1 + 8 + 1;
+
+	/**
+	 * The longest response frame with its length, of a cash machine of at most 8 denominations.
+	 */
+	static final int MAXIMUM_RESPONSE = 4 + RESPONSE_HEADER + 8 * 8;
+
+	private Protocol() {
+	}
+
+	/**
+	 * Put a request frame to out.
+	 * @param out {@link ByteBuffer} with at least {@code 4 + MAXIMUM_REQUEST} bytes remaining
+	 * @param op byte {@link #WITHDRAW}, {@link #DEPOSIT} or {@link #BALANCE}
+	 * @param id int returned in the response
+	 * @param account byte[] US-ASCII account number, at most {@link #MAXIMUM_ACCOUNT} bytes
+	 * @param amount long pounds of a withdrawal, pence of a deposit
+	 * @throws IllegalArgumentException if the account number is too long
+	 */
+	public static void putRequest(final ByteBuffer out, final byte op, final int id, final byte[] account,
+			final long amount) {
+		if (account.length > MAXIMUM_ACCOUNT)
+			throw new IllegalArgumentException("Account number longer than " + MAXIMUM_ACCOUNT);
+
+		out.putInt(REQUEST_HEADER + account.length).put(op).putInt(id).putLong(amount)
+				.put((byte) account.length).put(account);
+	}
+}
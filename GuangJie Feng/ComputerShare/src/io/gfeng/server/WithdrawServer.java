@@ -0,0 +1,401 @@
+package io.gfeng.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.gfeng.account.Account;
+import io.gfeng.account.AccountImpl;
+import io.gfeng.account.PenceAccount;
+import io.gfeng.cash.CashMachine;
+import io.gfeng.cash.Disbursement;
+import io.gfeng.cash.WithdrawResult;
+
+/**
+ * A non-blocking TCP server of withdrawals, deposits and balances of one {@link CashMachine},
+ * in the binary {@link Protocol}.
+ * <p>
+ * An acceptor thread hands each connection to one of the I/O threads, each of which runs a
+ * {@link Selector} over its connections. A connection has a direct buffer for requests and one
+ * for responses. Every complete request in the buffer is executed in order and its response
+ * appended, so pipelined requests are answered by one write. When the response buffer is full,
+ * the connection stops reading until the client reads its responses.
+ * <p>
+ * Requests are executed on the I/O thread. They wait for the locks of the cash machine and
+ * the account, and for the journal if there is one, so there should be an I/O thread per core.
+ * Accounts are opened by their first deposit, or restored by a function when they are first
+ * used, for example from a checkpoint.
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class WithdrawServer implements Closeable {
+	private static final Logger log = Logger.getLogger(WithdrawServer.class.getName());
+
+	/**
+	 * Size of the request and response buffers of a connection.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final CashMachine cashMachine;
+
+	private final ConcurrentHashMap<String, AccountImpl> accounts = new ConcurrentHashMap<>();
+	
+	/**
+	 * Returns the account of an account number which is not open, or null.
+	 */
+	private final Function<String, AccountImpl> restore;
+
+	private final ServerSocketChannel server;
+
+	private final IoLoop[] loops;
+
+	private final Thread acceptor;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Construct a server, and bind it to address.
+	 * @param cashMachine {@link CashMachine}
+	 * @param address {@link InetSocketAddress}, port 0 for any free port
+	 * @param ioThreads int number of I/O threads
+	 * @throws IOException if the address cannot be bound
+	 */
+	public WithdrawServer(final CashMachine cashMachine, final InetSocketAddress address,
+			final int ioThreads) throws IOException {
+		this(cashMachine, address, ioThreads, accountNumber -> null);
+	}
+	
+	/**
+	 * Construct a server which restores accounts, and bind it to address.
+	 * @param cashMachine {@link CashMachine}
+	 * @param address {@link InetSocketAddress}, port 0 for any free port
+	 * @param ioThreads int number of I/O threads
+	 * @param restore {@link Function} returns the account of an account number which is not
+	 * open, or null if there is none.
+	 * @throws IOException if the address cannot be bound
+	 */
+	public WithdrawServer(final CashMachine cashMachine, final InetSocketAddress address,
+			final int ioThreads, final Function<String, AccountImpl> restore) throws IOException {
+		this.cashMachine = cashMachine;
+		this.restore = restore;
+		this.server = ServerSocketChannel.open();
+		this.server.bind(address);
+
+		this.loops = new IoLoop[ioThreads];
+		for (int i = 0; i < ioThreads; i++) {
+			loops[i] = new IoLoop(Selector.open(), "withdraw-server-io-" + i);
+		}
+		this.acceptor = new Thread(this::accept, "withdraw-server-acceptor");
+	}
+
+	/**
+	 * Start accepting connections.
+	 */
+	public void start() {
+		for (IoLoop loop : loops) {
+			loop.thread.start();
+		}
+		acceptor.start();
+	}
+
+	/**
+	 * Return the address the server is bound to.
+	 * @return {@link InetSocketAddress}
+	 * @throws IOException
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * Return the account, or null if it is not open.
+	 * @param accountNumber {@link String}
+	 * @return {@link Account}
+	 */
+	public Account getAccount(final String accountNumber) {
+		return accounts.get(accountNumber);
+	}
+	
+	/**
+	 * Return the accounts opened or restored, for a checkpoint.
+	 * @return {@link Collection} of {@link AccountImpl}
+	 */
+	public Collection<AccountImpl> getAccounts() {
+		return Collections.unmodifiableCollection(accounts.values());
+	}
+
+	/**
+	 * Stop accepting, and close all connections.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		server.close();
+		for (IoLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+
+		try {
+			acceptor.join();
+			for (IoLoop loop : loops) {
+				loop.thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void accept() {
+		int next = 0;
+		while (running) {
+			try {
+				final SocketChannel channel = server.accept();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+				final IoLoop loop = loops[next++ % loops.length];
+				loop.pending.add(channel);
+				loop.selector.wakeup();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Failed to accept a connection", e);
+			}
+		}
+	}
+
+	/**
+	 * A connection and its buffers. Both buffers are in write mode between events.
+	 */
+	private static final class Connection {
+		private final SocketChannel channel;
+
+		private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		private final byte[] account = new byte[Protocol.MAXIMUM_ACCOUNT];
+
+		/**
+		 * True if complete requests are left because the response buffer was full.
+		 */
+		private boolean pending;
+
+		private Connection(final SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * A selector thread over its connections.
+	 */
+	private final class IoLoop implements Runnable {
+		private final Selector selector;
+
+		private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+		private final Thread thread;
+
+		private IoLoop(final Selector selector, final String name) {
+			this.selector = selector;
+			this.thread = new Thread(this, name);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					register();
+
+					final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						handle(key);
+					}
+				}
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Selector failed", e);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					closeQuietly(key);
+				}
+				closeQuietly(selector);
+			}
+		}
+
+		private void register() {
+			SocketChannel channel;
+			while ((channel = pending.poll()) != null) {
+				try {
+					channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+				} catch (ClosedChannelException e) {
+					closeQuietly(channel);
+				}
+			}
+		}
+
+		private void handle(final SelectionKey key) {
+			final Connection connection = (Connection) key.attachment();
+			try {
+				if (key.isReadable() && connection.channel.read(connection.in) < 0) {
+					closeQuietly(key);
+					return;
+				}
+				serve(key, connection);
+			} catch (IOException | RuntimeException e) {
+				log.log(Level.FINE, "Connection closed", e);
+				closeQuietly(key);
+			}
+		}
+	}
+
+	/**
+	 * Execute complete requests and write responses, until the socket cannot take more
+	 * responses or no complete request is left.
+	 */
+	private void serve(final SelectionKey key, final Connection connection) throws IOException {
+		while (true) {
+			connection.in.flip();
+			execute(connection);
+			connection.in.compact();
+
+			connection.out.flip();
+			connection.channel.write(connection.out);
+			connection.out.compact();
+
+			if (connection.out.position() > 0) {
+				//Wait until the client reads responses
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (!connection.pending) {
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Execute complete requests in the request buffer in read mode, while the response buffer
+	 * has room for the longest response.
+	 */
+	private void execute(final Connection connection) throws IOException {
+		final ByteBuffer in = connection.in;
+		final ByteBuffer out = connection.out;
+		connection.pending = false;
+
+		while (in.remaining() >= 4) {
+			final int length = in.getInt(in.position());
+			if (length < Protocol.REQUEST_HEADER || length > Protocol.MAXIMUM_REQUEST)
+				throw new IOException("Bad request length " + length);
+			if (in.remaining() < 4 + length)
+				return;
+			if (out.remaining() < Protocol.MAXIMUM_RESPONSE) {
+				connection.pending = true;
+				return;
+			}
+
+			in.getInt();
+			final byte op = in.get();
+			final int id = in.getInt();
+			final long amount = in.getLong();
+			final int accountLength = in.get() & 0xFF;
+			if (accountLength != length - Protocol.REQUEST_HEADER)
+				throw new IOException("Bad account length " + accountLength);
+			in.get(connection.account, 0, accountLength);
+			final String accountNumber = new String(connection.account, 0, accountLength, StandardCharsets.US_ASCII);
+
+			respond(out, id, op, accountNumber, amount);
+		}
+	}
+
+	/**
+	 * Execute a request, and put its response frame.
+	 */
+	private void respond(final ByteBuffer out, final int id, final byte op, final String accountNumber,
+			final long amount) {
+		final int start = out.position();
+		out.putInt(0).putInt(id);
+
+		Account account = accounts.get(accountNumber);
+		if (account == null)
+			account = accounts.computeIfAbsent(accountNumber, restore);
+		if (op == Protocol.DEPOSIT) {
+			if (amount <= 0) {
+				putStatus(out, Protocol.BAD_REQUEST, 0);
+			} else {
+				if (account == null)
+					account = accounts.computeIfAbsent(accountNumber, AccountImpl::new);
+				putStatus(out, Protocol.SUCCESS, PenceAccount.toPence(account.deposit(PenceAccount.toPounds(amount))));
+			}
+		} else if (op != Protocol.WITHDRAW && op != Protocol.BALANCE) {
+			putStatus(out, Protocol.BAD_REQUEST, 0);
+		} else if (account == null) {
+			putStatus(out, Protocol.UNKNOWN_ACCOUNT, 0);
+		} else if (op == Protocol.BALANCE) {
+			putStatus(out, Protocol.SUCCESS, PenceAccount.toPence(account.checkBalance()));
+		} else {
+			final int withdrawal = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, amount));
+			final WithdrawResult result = cashMachine.tryWithdraw(account, withdrawal);
+			final long balance = PenceAccount.toPence(account.checkBalance());
+
+			if (result.isSuccess()) {
+				final Disbursement disbursement = result.getDisbursement();
+				out.put((byte) result.getStatus().ordinal()).putLong(balance);
+				final int notesAt = out.position();
+				out.put((byte) 0);
+
+				int notes = 0;
+				for (int i = 0; i < disbursement.getDenominations(); i++) {
+					if (disbursement.getCountAt(i) != 0) {
+						out.putInt(disbursement.getNoteAt(i)).putInt(disbursement.getCountAt(i));
+						notes++;
+					}
+				}
+				out.put(notesAt, (byte) notes);
+			} else {
+				putStatus(out, (byte) result.getStatus().ordinal(), balance);
+			}
+		}
+
+		out.putInt(start, out.position() - start - 4);
+	}
+
+	private static void putStatus(final ByteBuffer out, final byte status, final long balance) {
+		out.put(status).putLong(balance).put((byte) 0);
+	}
+
+	private static void closeQuietly(final SelectionKey key) {
+		key.cancel();
+		closeQuietly(key.channel());
+	}
+
+	private static void closeQuietly(final Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			log.log(Level.FINE, "Failed to close", e);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package io.gfeng.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A tracer of account and cash machine operations. Events are written as primitive records into
+ * a preallocated ring, and a drainer thread formats and writes them, so an operation pays for
+ * claiming a slot and storing a few fields, never for building a {@link String} or for I/O.
+ * <p>
+ * Producers claim a slot by compare-and-set on the claimed sequence, fill in the record and
+ * publish the slot by its sequence. The drainer reads published slots in sequence order. When
+ * the ring is full the event is dropped and counted, so producers never wait for the drainer.
+ * <p>
+ * Tracing is off until {@link #start(Writer, int)}. Call sites read {@link #current()} and skip
+ * the event when it is null, which costs one volatile read.
+ * <pre>
+ * final OperationTracer tracer = OperationTracer.current();
+ * if (tracer != null)
+ *     tracer.trace(OperationTracer.DEPOSIT, accountNumber, null, amount, balance);
+ * </pre>
+ * Its instance is thread safe.
+ *
+ * @author gfeng
+ *
+ */
+public final class OperationTracer implements Closeable {
+	/**
+	 * A deposit to an account. Amount and balance after the deposit in pence.
+	 */
+	public static final byte DEPOSIT = 1;
+
+	/**
+	 * A withdrawal from an account. Amount and balance after the withdrawal in pence.
+	 */
+	public static final byte WITHDRAW = 2;
+
+	/**
+	 * A withdrawal refused by an account. Amount and balance in pence.
+	 */
+	public static final byte OVERDRAWN = 3;
+
+	/**
+	 * A balance read of an account. Balance in pence.
+	 */
+	public static final byte BALANCE = 4;
+
+	/**
+	 * Notes disbursed by a cash machine. Withdrawal and number of notes, the notes are the detail.
+	 */
+	public static final byte DISBURSE = 5;
+
+	/**
+	 * A withdrawal rejected by a cash machine. Withdrawal, the reason is the detail.
+	 */
+	public static final byte REJECT = 6;
+
+	/**
+	 * Notes filled in a cash machine. Note and number of notes.
+	 */
+	public static final byte REPLENISH = 7;
+
+	private static final DateTimeFormatter TIME_FORMATTER =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS").withZone(ZoneId.systemDefault());
+
+	/**
+	 * Nanoseconds the drainer parks when the ring is empty.
+	 */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static volatile OperationTracer current;
+
+	private final int mask;
+
+	private final byte[] types;
+
+	private final Object[] subjects;
+
+	private final Object[] details;
+
+	private final long[] firsts;
+
+	private final long[] seconds;
+
+	private final long[] times;
+
+	/**
+	 * Sequence + 1 of the record in each slot, 0 if no record was published.
+	 */
+	private final AtomicLongArray published;
+
+	/**
+	 * Number of slots claimed.
+	 */
+	private final AtomicLong claimed = new AtomicLong();
+
+	/**
+	 * Number of records the drainer has written. Only the drainer writes it.
+	 */
+	private volatile long consumed;
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final Writer out;
+
+	/**
+	 * Wall clock and {@link System#nanoTime()} at start, to print the time of events.
+	 */
+	private final long startMillis;
+
+	private final long startNanos;
+
+	private volatile boolean closed;
+
+	private final Thread drainer;
+
+	private OperationTracer(final Writer out, final int capacity) {
+		final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.types = new byte[size];
+		this.subjects = new Object[size];
+		this.details = new Object[size];
+		this.firsts = new long[size];
+		this.seconds = new long[size];
+		this.times = new long[size];
+		this.published = new AtomicLongArray(size);
+		this.out = out;
+		this.startMillis = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+
+		this.drainer = new Thread(this::drain, "operation-tracer");
+		this.drainer.setDaemon(true);
+	}
+
+	/**
+	 * Start tracing operations to out, and return the tracer. A running tracer is closed first.
+	 * @param out {@link Writer} written by the drainer thread only
+	 * @param capacity int number of records the ring holds, rounded up to a power of 2
+	 * @return {@link OperationTracer}
+	 */
+	public static synchronized OperationTracer start(final Writer out, final int capacity) {
+		final OperationTracer running = current;
+		if (running != null)
+			running.close();
+
+		final OperationTracer tracer = new OperationTracer(out, capacity);
+		tracer.drainer.start();
+		current = tracer;
+
+		return tracer;
+	}
+
+	/**
+	 * Return the running tracer, or null if tracing is off.
+	 * @return {@link OperationTracer}
+	 */
+	public static OperationTracer current() {
+		return current;
+	}
+
+	/**
+	 * Record an event. It does not wait: if the ring is full the event is dropped.
+	 * @param type byte one of the event types
+	 * @param subject {@link Object} account number or cash machine id
+	 * @param detail {@link Object} immutable detail formatted by the drainer, or null
+	 * @param first long first value of the event
+	 * @param second long second value of the event
+	 */
+	public void trace(final byte type, final Object subject, final Object detail, final long first,
+			final long second) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed > mask) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		final int slot = (int) sequence & mask;
+		types[slot] = type;
+		subjects[slot] = subject;
+		details[slot] = detail;
+		firsts[slot] = first;
+		seconds[slot] = second;
+		times[slot] = System.nanoTime();
+		published.lazySet(slot, sequence + 1);
+	}
+
+	/**
+	 * Return number of events dropped because the ring was full.
+	 * @return long
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Stop tracing, and write events recorded.
+	 */
+	@Override
+	public void close() {
+		synchronized (OperationTracer.class) {
+			if (current == this)
+				current = null;
+		}
+
+		closed = true;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The loop of the drainer thread.
+	 */
+	private void drain() {
+		final StringBuilder line = new StringBuilder(128);
+		boolean written = false;
+
+		try {
+			while (true) {
+				final long sequence = consumed;
+				final int slot = (int) sequence & mask;
+				if (published.get(slot) == sequence + 1) {
+					line.setLength(0);
+					format(line, slot);
+					subjects[slot] = null;
+					details[slot] = null;
+					consumed = sequence + 1;
+
+					out.append(line);
+					written = true;
+				} else if (closed && claimed.get() == sequence) {
+					break;
+				} else {
+					if (written) {
+						out.flush();
+						written = false;
+					}
+					LockSupport.parkNanos(this, IDLE_NANOS);
+				}
+			}
+
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Operation tracer failed to write", e);
+		}
+	}
+
+	private void format(final StringBuilder line, final int slot) {
+		final long nanos = times[slot] - startNanos;
+		final Instant time = Instant.ofEpochMilli(startMillis + nanos / 1000000)
+				.plusNanos(nanos % 1000000 / 1000 * 1000);
+		TIME_FORMATTER.formatTo(time, line);
+		line.append(' ');
+
+		final long first = firsts[slot];
+		final long second = seconds[slot];
+		switch (types[slot]) {
+		case DEPOSIT:
+			line.append("DEPOSIT account=").append(subjects[slot]).append(" amount=");
+			appendPence(line, first).append(" balance=");
+			appendPence(line, second);
+			break;
+		case WITHDRAW:
+			line.append("WITHDRAW account=").append(subjects[slot]).append(" amount=");
+			appendPence(line, first).append(" balance=");
+			appendPence(line, second);
+			break;
+		case OVERDRAWN:
+			line.append("OVERDRAWN account=").append(subjects[slot]).append(" amount=");
+			appendPence(line, first).append(" balance=");
+			appendPence(line, second);
+			break;
+		case BALANCE:
+			line.append("BALANCE account=").append(subjects[slot]).append(" balance=");
+			appendPence(line, second);
+			break;
+		case DISBURSE:
+			line.append("DISBURSE machine=").append(subjects[slot]).append(" withdrawal=").append(first)
+					.append(" notes=").append(second).append(' ').append(details[slot]);
+			break;
+		case REJECT:
+			line.append("REJECT machine=").append(subjects[slot]).append(" withdrawal=").append(first)
+					.append(" reason=").append(details[slot]);
+			break;
+		case REPLENISH:
+			line.append("REPLENISH machine=").append(subjects[slot]).append(" note=").append(first)
+					.append(" count=").append(second);
+			break;
+		default:
+			line.append("EVENT ").append(types[slot]).append(' ').append(subjects[slot]).append(' ')
+					.append(first).append(' ').append(second).append(' ').append(details[slot]);
+		}
+		line.append(System.lineSeparator());
+	}
+
+	private static StringBuilder appendPence(final StringBuilder line, final long pence) {
+		if (pence < 0)
+			line.append('-');
+		final long magnitude = Math.abs(pence);
+		line.append(magnitude / 100).append('.');
+		if (magnitude % 100 < 10)
+			line.append('0');
+
+		return line.append(magnitude % 100);
+	}
+}